@@ -0,0 +1,130 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a sequence of bits from an underlying input stream through a fixed
+ * size buffer, or straight from a byte buffer such as a mapped file. Bits are
+ * unpacked in the same order BuildHuffTree.encode stores them, lowest bit of
+ * each byte first. Up to 32 bits can be looked at before they are consumed,
+ * which is what the table driven decoder needs.
+ *
+ * @author jeromeli
+ *
+ */
+public class BitInputStream implements Closeable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private final ByteBuffer source;
+  private final byte[] buffer;
+  private int pos;
+  private int limit;
+  private long window;
+  private int windowBits;
+
+  /**
+   * Create a bit stream that reads from in.
+   *
+   * @param in stream to read from.
+   */
+  public BitInputStream(InputStream in) {
+    this.in = in;
+    this.source = null;
+    this.buffer = new byte[BUFFER_SIZE];
+  }
+
+  /**
+   * Create a bit stream that reads the bytes from the position to the limit
+   * of source without copying them. The position of source is moved as bits
+   * are read.
+   *
+   * @param source buffer to read from.
+   */
+  public BitInputStream(ByteBuffer source) {
+    this.in = null;
+    this.source = source;
+    this.buffer = null;
+  }
+
+  /**
+   * Get the next count bits without consuming them. The next bit ends up in
+   * the lowest position of the result. Bits past the end of the stream are
+   * read as 0.
+   *
+   * @param count number of bits, 0 to 32.
+   * @return the bits.
+   * @throws IOException if the underlying stream fails.
+   */
+  public int peekBits(int count) throws IOException {
+    if (windowBits < count) {
+      refill();
+    }
+    return (int) (window & ((1L << count) - 1));
+  }
+
+  /**
+   * Consume count bits.
+   *
+   * @param count number of bits, 0 to 32.
+   * @throws IOException if the underlying stream fails or ends first.
+   */
+  public void skipBits(int count) throws IOException {
+    if (windowBits < count) {
+      refill();
+      if (windowBits < count) {
+        throw new EOFException("bit stream ended in the middle of a code");
+      }
+    }
+    window >>>= count;
+    windowBits -= count;
+  }
+
+  /**
+   * Read and consume a single bit.
+   *
+   * @return 0 or 1.
+   * @throws IOException if the underlying stream fails or has ended.
+   */
+  public int readBit() throws IOException {
+    int bit = peekBits(1);
+    skipBits(1);
+    return bit;
+  }
+
+  /**
+   * Private helper method that tops the window up from the buffer.
+   */
+  private void refill() throws IOException {
+    if (source != null) {
+      while (windowBits <= 56 && source.hasRemaining()) {
+        window |= (long) (source.get() & 0xFF) << windowBits;
+        windowBits += 8;
+      }
+      return;
+    }
+    while (windowBits <= 56) {
+      if (pos == limit) {
+        limit = in.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return;
+        }
+      }
+      window |= (long) (buffer[pos++] & 0xFF) << windowBits;
+      windowBits += 8;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+    }
+  }
+
+}
@@ -1,18 +1,26 @@
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * The BitSequence class stores an arbitrary sequence of bits. The underlying
- * data structure is a dynamic array of primitive bytes. This collection
- * supports append operations and bit-level modification, but it does not
- * support removal.
- * 
- * <p>This class is intended to support efficient serialization. The storage array
- * will be trimmed down to the smallest possible size before the object is
- * serialized.
- * 
+ * data structure is a dynamic array of primitive longs, each holding 64 bits
+ * with the first one in the lowest position. This collection supports append
+ * operations and bit-level modification, but it does not support removal.
+ * Bits can be appended and read up to 64 at a time.
+ *
+ * <p>This class is intended to support efficient serialization. The serialized
+ * form is the same as when the bits were stored in a byte array: the number
+ * of bits and a byte array trimmed down to the smallest possible size, so
+ * sequences saved by older versions can still be read and the other way
+ * around.
+ *
  * @author Nathan Sprague
  * @version V1.1 12/6/16
  *
@@ -22,23 +30,28 @@ public class BitSequence implements Iterable<Integer>, Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  /** The fields of the original byte array version. */
+  private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("numBits", int.class),
+      new ObjectStreamField("bytes", byte[].class)};
+
   private int numBits;
-  private byte[] bytes;
+  private transient long[] words;
 
   /**
    * Construct an empty bit sequence.
    */
   public BitSequence() {
     numBits = 0;
-    bytes = new byte[1];
+    words = new long[1];
   }
 
   /**
    * Copy constructor.
    */
   public BitSequence(BitSequence bits) {
-    this();
-    this.appendBits(bits);
+    numBits = bits.numBits;
+    words = Arrays.copyOf(bits.words, Math.max(1, (numBits + 63) >>> 6));
   }
 
   /**
@@ -53,29 +66,49 @@ public class BitSequence implements Iterable<Integer>, Serializable {
    * 0, all other values will be interpreted as the bit 1.
    */
   public void appendBit(int bit) {
-    if (numBits / 8 == bytes.length) {
-      resize();
-    }
+    appendBits(bit != 0 ? 1 : 0, 1);
+  }
 
-    if (bit != 0) {
-      int whichByte = numBits / 8;
-      byte bitmask = (byte) (1 << numBits % 8);
-      bytes[whichByte] |= bitmask;
+  /**
+   * Append the lowest count bits of bits to the end of this sequence, starting
+   * with the lowest one.
+   *
+   * @param bits the bits to append.
+   * @param count number of bits, 0 to 64.
+   */
+  public void appendBits(long bits, int count) {
+    if (count < 0 || count > 64) {
+      throw new IllegalArgumentException("count must be 0 to 64");
     }
+    if (count == 0) {
+      return;
+    }
+    if (count < 64) {
+      bits &= (1L << count) - 1;
+    }
+    ensureCapacity(numBits + count);
 
-    numBits++;
+    int whichWord = numBits >>> 6;
+    int offset = numBits & 63;
+    words[whichWord] |= bits << offset;
+    if (offset + count > 64) {
+      words[whichWord + 1] = bits >>> (64 - offset);
+    }
+    numBits += count;
   }
 
   /**
-   * Private helper method for doubling the size of the byte array when it
-   * becomes full.
+   * Private helper method for growing the word array, at least doubling it,
+   * so that it can hold the given number of bits.
    */
-  private void resize() {
-    byte[] newBytes = new byte[bytes.length * 2];
-    for (int i = 0; i < bytes.length; i++) {
-      newBytes[i] = bytes[i];
+  private void ensureCapacity(int bits) {
+    if (bits < 0) {
+      throw new IllegalStateException("bit sequence is full");
+    }
+    int needed = (int) ((bits + 63L) >>> 6);
+    if (needed > words.length) {
+      words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
     }
-    bytes = newBytes;
   }
 
   /**
@@ -96,8 +129,10 @@ public class BitSequence implements Iterable<Integer>, Serializable {
    * Append the provided bit sequence to the end of this sequence.
    */
   public void appendBits(BitSequence bits) {
-    for (Integer bit : bits) {
-      appendBit(bit);
+    int length = bits.numBits;
+    for (int i = 0; i < length; i += 64) {
+      int count = Math.min(64, length - i);
+      appendBits(bits.readBits(i, count), count);
     }
   }
 
@@ -110,12 +145,11 @@ public class BitSequence implements Iterable<Integer>, Serializable {
       throw new IndexOutOfBoundsException();
     }
 
-    int whichByte = index / 8;
-    byte bitmask = (byte) (1 << index % 8);
+    long bitmask = 1L << (index & 63);
     if (bit != 0) {
-      bytes[whichByte] |= bitmask;
+      words[index >>> 6] |= bitmask;
     } else {
-      bytes[whichByte] &= ~bitmask;
+      words[index >>> 6] &= ~bitmask;
     }
   }
 
@@ -126,12 +160,109 @@ public class BitSequence implements Iterable<Integer>, Serializable {
     if (index < 0 || index >= numBits) {
       throw new IndexOutOfBoundsException();
     }
-    int whichByte = index / 8;
-    byte bitmask = (byte) (1 << index % 8);
-    return (bitmask & bytes[whichByte]) == 0 ? 0 : 1;
+    return (int) (words[index >>> 6] >>> (index & 63)) & 1;
+  }
+
+  /**
+   * Get count bits starting at a specified index. The bit at index ends up in
+   * the lowest position of the result, the next bit in the position above it,
+   * and so on.
+   *
+   * @param index index of the first bit.
+   * @param count number of bits, 0 to 64.
+   * @return the bits.
+   */
+  public long readBits(int index, int count) {
+    if (index < 0 || count < 0 || count > 64 || index > numBits - count) {
+      throw new IndexOutOfBoundsException();
+    }
+    return window(index, count);
   }
 
+  /**
+   * Get up to 32 bits starting at a specified index. The bit at index ends up
+   * in the lowest position of the result, the next bit in the position above
+   * it, and so on. Bits past the end of the sequence are read as 0.
+   */
+  public int peekBits(int index, int count) {
+    if (index < 0 || count < 0 || count > 32) {
+      throw new IndexOutOfBoundsException();
+    }
+    return (int) window(index, count);
+  }
 
+  /**
+   * Private helper method that reads count bits at index. Bits past the end
+   * of the sequence are read as 0.
+   */
+  private long window(int index, int count) {
+    if (count == 0) {
+      return 0;
+    }
+    int whichWord = index >>> 6;
+    int offset = index & 63;
+    long result = whichWord < words.length ? words[whichWord] >>> offset : 0;
+    if (offset + count > 64 && whichWord + 1 < words.length) {
+      result |= words[whichWord + 1] << (64 - offset);
+    }
+    return count == 64 ? result : result & ((1L << count) - 1);
+  }
+
+  /**
+   * Return a cursor that reads this sequence from the start without boxing
+   * each bit the way the iterator does.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Reads the bits of a sequence in order, one or many at a time.
+   */
+  public class Cursor {
+
+    private int index = 0;
+
+    /**
+     * Return the index of the next bit.
+     */
+    public int position() {
+      return index;
+    }
+
+    /**
+     * Return the number of bits left.
+     */
+    public int remaining() {
+      return numBits - index;
+    }
+
+    /**
+     * Read the next bit.
+     */
+    public int nextBit() {
+      int bit = getBit(index);
+      index++;
+      return bit;
+    }
+
+    /**
+     * Read the next count bits, 0 to 64, the first in the lowest position.
+     */
+    public long nextBits(int count) {
+      long bits = readBits(index, count);
+      index += count;
+      return bits;
+    }
+
+  }
+
+  /**
+   * Private helper method that returns byte i of the packed bits.
+   */
+  private byte byteAt(int i) {
+    return (byte) (words[i >>> 3] >>> ((i & 7) * 8));
+  }
 
   @Override
   public boolean equals(Object other) {
@@ -144,11 +275,11 @@ public class BitSequence implements Iterable<Integer>, Serializable {
       return false;
     }
 
-    // Compare each byte. It's fine to compare the partial bytes at the
+    // Compare each word. It's fine to compare the partial words at the
     // end because they are guaranteed to be all 0's past the last valid
     // index.
-    for (int i = 0; i < length() / 8 + 1; i++) {
-      if (bytes[i] != otherSeq.bytes[i]) {
+    for (int i = 0; i < (length() + 63) >>> 6; i++) {
+      if (words[i] != otherSeq.words[i]) {
         return false;
       }
     }
@@ -165,7 +296,7 @@ public class BitSequence implements Iterable<Integer>, Serializable {
     int result = 0;
 
     for (int i = 0; i < length() / 8 + 1; i++) {
-      result ^= bytes[i] << (i % 4) * 8;
+      result ^= (i >>> 3 < words.length ? byteAt(i) : 0) << (i % 4) * 8;
     }
     return result;
   }
@@ -177,11 +308,11 @@ public class BitSequence implements Iterable<Integer>, Serializable {
   @Override
   public String toString() {
 
-    String result = "";
-    for (int bit : this) {
-      result += bit;
+    StringBuilder result = new StringBuilder(numBits);
+    for (int i = 0; i < numBits; i++) {
+      result.append(getBit(i));
     }
-    return result;
+    return result.toString();
   }
 
   @Override
@@ -218,27 +349,48 @@ public class BitSequence implements Iterable<Integer>, Serializable {
   }
 
   /**
-   * Resize the array so that there are no unused entries.
+   * This method writes the bits as a byte array trimmed down to the smallest
+   * possible size, the same form the byte array version used.
+   *
+   * @throws IOException If there is a problem writing to the provided output
+   *         stream.
    */
-  private void trim() {
-    byte[] newBytes = new byte[(numBits + 7) / 8];
-    for (int i = 0; i < newBytes.length; i++) {
-      newBytes[i] = bytes[i];
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    byte[] bytes = new byte[(numBits + 7) / 8];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = byteAt(i);
     }
-    bytes = newBytes;
+
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("numBits", numBits);
+    fields.put("bytes", bytes);
+    out.writeFields();
   }
 
   /**
-   * This method overrides the default writeObject method to make sure that the
-   * array is trimmed before serialization.
-   * 
-   * @throws IOException If there is a problem writing to the provided output
-   *         stream.
+   * This method reads the byte array form back into words.
+   *
+   * @throws IOException If there is a problem reading from the provided input
+   *         stream or the bits are not valid.
    */
-  private void writeObject(java.io.ObjectOutputStream out)
-      throws IOException {
-    trim();
-    out.defaultWriteObject();
+  private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    int bits = fields.get("numBits", 0);
+    byte[] bytes = (byte[]) fields.get("bytes", null);
+    if (bits < 0 || bytes == null || (bits + 7) / 8 > bytes.length) {
+      throw new InvalidObjectException("bad bit sequence");
+    }
+
+    numBits = bits;
+    words = new long[Math.max(1, (bits + 63) >>> 6)];
+    for (int i = 0; i < (bits + 7) / 8; i++) {
+      words[i >>> 3] |= (bytes[i] & 0xFFL) << ((i & 7) * 8);
+    }
+    // Keep everything past the last valid index 0.
+    if ((bits & 63) != 0) {
+      words[(bits - 1) >>> 6] &= (1L << (bits & 63)) - 1;
+    }
   }
 
 }
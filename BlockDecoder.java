@@ -0,0 +1,366 @@
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Decompresses a zipped file written by BlockEncoder. A stream or a buffer is
+ * decoded one block after another. A file is decoded in parallel: the block
+ * index says where every block starts and where its bytes go in the original
+ * file, so each block is read, decoded and written at its place in the output
+ * file on its own, through arrays that are handed from block to block.
+ *
+ * <p>Every decoded block is checked against the CRC32C in its header, unless
+ * the decoder is made without verification. The file checksum at the end is
+ * always checked; it only covers the block checksums, so that costs nothing.
+ *
+ * @author jeromeli
+ *
+ */
+public class BlockDecoder {
+
+  private final int parallelism;
+  private final boolean verify;
+
+  /**
+   * Create a decoder that uses every core.
+   */
+  public BlockDecoder() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a decoder that checks every block.
+   *
+   * @param parallelism number of blocks decoded at the same time.
+   */
+  public BlockDecoder(int parallelism) {
+    this(parallelism, true);
+  }
+
+  /**
+   * Create a decoder.
+   *
+   * @param parallelism number of blocks decoded at the same time.
+   * @param verify whether to check each decoded block against its checksum.
+   */
+  public BlockDecoder(int parallelism, boolean verify) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+    this.verify = verify;
+  }
+
+  /**
+   * decompresses the zipped file in in and writes the original data to out,
+   * flushing out after every block. Neither stream is closed. With more than
+   * one thread, a reader thread reads blocks ahead while earlier ones are
+   * decoded in parallel and written in order, and stops when 2 * parallelism
+   * blocks are waiting to be written.
+   *
+   * @param in stream positioned at the start of the zipped file.
+   * @param out stream the original data is written to.
+   * @return length of the original data.
+   * @throws IOException if either stream fails or the file is damaged.
+   */
+  public long decompress(InputStream in, OutputStream out) throws IOException {
+    DataInputStream dataIn = new DataInputStream(in);
+    int blockSize = JmzFormat.readHeader(dataIn);
+
+    ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    try {
+      long length = 0;
+      CRC32C checksum = new CRC32C();
+      Queue<byte[]> spare = new ConcurrentLinkedQueue<>();
+      try (BlockPipeline<DecodedBlock> blocks = new BlockPipeline<>(
+          pool != null ? 2 * parallelism : 0, () -> {
+            JmzFormat.BlockHeader header = JmzFormat.readBlockHeader(dataIn, blockSize);
+            if (header == null) {
+              return null;
+            }
+            byte[] payload = take(spare, header.getPayloadLength());
+            dataIn.readFully(payload, 0, header.getPayloadLength());
+            Callable<DecodedBlock> task = () -> decodeBlock(header, payload, spare);
+            return pool != null ? pool.submit(task)
+                : CompletableFuture.completedFuture(BlockEncoder.call(task));
+          })) {
+        Future<DecodedBlock> next;
+        while ((next = blocks.take()) != null) {
+          DecodedBlock decoded = BlockEncoder.join(next);
+          out.write(decoded.bytes, 0, decoded.header.getLength());
+          length += decoded.header.getLength();
+          JmzFormat.addBlockChecksum(checksum, decoded.header.getChecksum());
+          spare.offer(decoded.bytes);
+          // Pass each block on as it comes, in case in is a live stream.
+          out.flush();
+        }
+      }
+
+      JmzFormat.readEnd(dataIn, length, (int) checksum.getValue());
+      return length;
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * helper method that decodes a block read from a stream and checks it. A
+   * stored block is its own payload; otherwise the payload is handed back to
+   * spare once decoded.
+   */
+  private DecodedBlock decodeBlock(JmzFormat.BlockHeader header, byte[] payload,
+      Queue<byte[]> spare) throws IOException {
+    if (header.getType() == JmzFormat.STORED) {
+      check(header, ByteBuffer.wrap(payload, 0, header.getPayloadLength()));
+      return new DecodedBlock(header, payload);
+    }
+    byte[] block = take(spare, header.getLength());
+    ByteBuffer[] streams = header.streams(ByteBuffer.wrap(payload, 0, header.getPayloadLength()));
+    BuildHuffTree.decode(header.getCodebook(), streams, block, 0, header.getLength());
+    check(header, ByteBuffer.wrap(block, 0, header.getLength()));
+    spare.offer(payload);
+    return new DecodedBlock(header, block);
+  }
+
+  /**
+   * helper method that returns a spare array of at least length bytes, or a
+   * new one. Spares too small are dropped, so they do not pile up.
+   */
+  static byte[] take(Queue<byte[]> spare, int length) {
+    return take(spare, length, length);
+  }
+
+  /**
+   * helper method that returns a spare array of at least length bytes, or a
+   * new one of at least size bytes, so that it fits later blocks too.
+   */
+  static byte[] take(Queue<byte[]> spare, int length, int size) {
+    byte[] array;
+    while ((array = spare.poll()) != null) {
+      if (array.length >= length) {
+        return array;
+      }
+    }
+    return new byte[Math.max(length, size)];
+  }
+
+  /**
+   * A decoded block waiting to be written, and the array holding it.
+   */
+  private static final class DecodedBlock {
+
+    private final JmzFormat.BlockHeader header;
+    private final byte[] bytes;
+
+    DecodedBlock(JmzFormat.BlockHeader header, byte[] bytes) {
+      this.header = header;
+      this.bytes = bytes;
+    }
+
+  }
+
+  /**
+   * decompresses a zipped file into out, decoding blocks in parallel. out is
+   * created or replaced, and sized to the original length before any block is
+   * written.
+   *
+   * @param in the zipped file.
+   * @param out the file the original data is written to.
+   * @return length of the original data.
+   * @throws IOException if either file fails or the zipped file is damaged.
+   */
+  public long decompress(Path in, Path out) throws IOException {
+    try (FileChannel zipped = FileChannel.open(in, StandardOpenOption.READ)) {
+      return decompress(zipped, 0, zipped.size(), out);
+    }
+  }
+
+  /**
+   * decompresses a zipped file that takes up part of a channel, such as an
+   * entry of a JmzArchive, into out, decoding blocks in parallel. Nothing
+   * outside the part is read. out is created or replaced, and sized to the
+   * original length before any block is written.
+   *
+   * @param zipped channel holding the zipped file, which is not closed.
+   * @param start offset of the zipped file in zipped.
+   * @param size length of the zipped file.
+   * @param out the file the original data is written to.
+   * @return length of the original data.
+   * @throws IOException if either file fails or the zipped file is damaged.
+   */
+  public long decompress(FileChannel zipped, long start, long size, Path out)
+      throws IOException {
+    JmzFormat.Index index = JmzFormat.readIndex(zipped, start, size);
+    // A file of one block, like most entries of an archive, needs no pool.
+    ForkJoinPool pool = parallelism > 1 && index.getBlockCount() > 1
+        ? new ForkJoinPool(parallelism) : null;
+    try (FileChannel original = FileChannel.open(out, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (index.getLength() > 0) {
+        original.write(ByteBuffer.allocate(1), index.getLength() - 1);
+      }
+
+      CRC32C checksum = new CRC32C();
+      Queue<byte[]> spare = new ConcurrentLinkedQueue<>();
+      if (pool == null) {
+        for (int i = 0; i < index.getBlockCount(); i++) {
+          JmzFormat.addBlockChecksum(checksum,
+              decodeBlock(zipped, original, index, i, spare));
+        }
+      } else {
+        List<Future<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < index.getBlockCount(); i++) {
+          int block = i;
+          tasks.add(pool.submit(() -> decodeBlock(zipped, original, index, block, spare)));
+        }
+        for (Future<Integer> task : tasks) {
+          JmzFormat.addBlockChecksum(checksum, BlockEncoder.join(task));
+        }
+      }
+
+      if ((int) checksum.getValue() != index.getChecksum()) {
+        throw new IOException("jmz file checksum does not match");
+      }
+      return index.getLength();
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * decompresses the zipped data from the position of in and puts the
+   * original data in out, one block after another. Blocks are decoded from in
+   * without copying them. The position of in is moved past the zipped data
+   * and the position of out past the original data.
+   *
+   * @param in buffer positioned at the start of the zipped data.
+   * @param out buffer the original data is put in.
+   * @return length of the original data.
+   * @throws IOException if the zipped data is damaged.
+   * @throws BufferOverflowException if out is too small, some blocks may have
+   *         been put in out already.
+   */
+  public long decompress(ByteBuffer in, ByteBuffer out) throws IOException {
+    DataInput dataIn = JmzFormat.asDataInput(in);
+    int blockSize = JmzFormat.readHeader(dataIn);
+
+    long length = 0;
+    CRC32C checksum = new CRC32C();
+    JmzFormat.BlockHeader header;
+    while ((header = JmzFormat.readBlockHeader(dataIn, blockSize)) != null) {
+      int payloadLength = header.getPayloadLength();
+      if (payloadLength > in.remaining()) {
+        throw new IOException("corrupt jmz block");
+      }
+      if (header.getLength() > out.remaining()) {
+        throw new BufferOverflowException();
+      }
+
+      ByteBuffer payload = in.duplicate();
+      payload.limit(in.position() + payloadLength);
+      in.position(in.position() + payloadLength);
+      ByteBuffer decoded = out.duplicate();
+      if (header.getType() == JmzFormat.STORED) {
+        out.put(payload);
+      } else {
+        BuildHuffTree.decode(header.getCodebook(), header.streams(payload), out,
+            header.getLength());
+      }
+      decoded.limit(out.position());
+      check(header, decoded);
+      length += header.getLength();
+      JmzFormat.addBlockChecksum(checksum, header.getChecksum());
+    }
+
+    JmzFormat.readEnd(dataIn, length, (int) checksum.getValue());
+    return length;
+  }
+
+  /**
+   * decodes one block into its place in the original file. The zipped block
+   * is read into a spare array and decoded into another, which is then
+   * written at its place, so nothing is mapped and no more than a few blocks
+   * per thread are on the heap, however many blocks the file has.
+   *
+   * @param zipped the zipped file.
+   * @param original the file the original data is written to.
+   * @param index block index of the zipped file.
+   * @param block number of the block to decode.
+   * @param spare arrays that are free to use, handed back when done.
+   * @return checksum of the block from its header.
+   * @throws IOException if either file fails or the block is damaged.
+   */
+  private int decodeBlock(FileChannel zipped, FileChannel original,
+      JmzFormat.Index index, int block, Queue<byte[]> spare) throws IOException {
+    // Big enough for any block of this file, zipped or not, so the arrays can
+    // be handed from block to block.
+    int size = (int) Math.min(index.getBlockSize(), index.getLength())
+        + JmzFormat.MAX_BLOCK_OVERHEAD;
+    byte[] payload = take(spare, index.getZippedLength(block), size);
+    byte[] decoded = null;
+    try {
+      ByteBuffer bytes = ByteBuffer.wrap(payload, 0, index.getZippedLength(block));
+      JmzFormat.readFully(zipped, bytes, index.getOffset(block));
+      bytes.flip();
+      JmzFormat.BlockHeader header =
+          JmzFormat.readBlockHeader(JmzFormat.asDataInput(bytes), index.getBlockSize());
+      if (header == null || header.getLength() != index.getLength(block)
+          || header.getPayloadLength() > bytes.remaining()) {
+        throw new IOException("corrupt jmz block");
+      }
+      bytes.limit(bytes.position() + header.getPayloadLength());
+
+      ByteBuffer out = bytes;
+      if (header.getType() != JmzFormat.STORED) {
+        decoded = take(spare, header.getLength(), size);
+        out = ByteBuffer.wrap(decoded, 0, header.getLength());
+        BuildHuffTree.decode(header.getCodebook(), header.streams(bytes), decoded, 0,
+            header.getLength());
+      }
+      check(header, out.duplicate());
+      JmzFormat.writeFully(original, out, index.getPosition(block));
+      return header.getChecksum();
+    } finally {
+      spare.offer(payload);
+      if (decoded != null) {
+        spare.offer(decoded);
+      }
+    }
+  }
+
+  /**
+   * helper method that checks a decoded block against the checksum in its
+   * header, if this decoder verifies blocks.
+   *
+   * @param header header of the block.
+   * @param decoded the decoded bytes, from the position to the limit.
+   * @throws IOException if they do not match.
+   */
+  private void check(JmzFormat.BlockHeader header, ByteBuffer decoded) throws IOException {
+    if (verify && JmzFormat.checksum(decoded) != header.getChecksum()) {
+      throw new IOException("jmz block checksum does not match");
+    }
+  }
+
+}
@@ -0,0 +1,526 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Compresses a stream, a file or a buffer as a sequence of independent
+ * blocks, see JmzFormat. Each block gets its own frequency count and
+ * codebook, so blocks are encoded in parallel on a fork join pool. They are
+ * still written in order, and at most two blocks per thread are held in
+ * memory at a time. An encoder with one thread encodes on the calling thread.
+ * An encoder keeps no state between calls, so one instance can be used by
+ * several threads at once.
+ *
+ * @author jeromeli
+ *
+ */
+public class BlockEncoder {
+
+  public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+  /**
+   * Longest code by default. Every code then fits one decode table lookup,
+   * and on the benchmark corpora it costs less than 0.01% in size.
+   */
+  public static final int DEFAULT_MAX_CODE_LENGTH = HuffCodebook.FLAT_TABLE_BITS;
+
+  /**
+   * Blocks shorter than this always get a single stream, the jump table would
+   * cost more than the faster decoding saves.
+   */
+  private static final int MIN_SPLIT_LENGTH = 1 << 12;
+
+  private final int blockSize;
+  private final int parallelism;
+  private final int maxCodeLength;
+  private final int streams;
+
+  /**
+   * Create an encoder with the default block size that uses every core.
+   */
+  public BlockEncoder() {
+    this(DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create an encoder.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of blocks encoded at the same time.
+   */
+  public BlockEncoder(int blockSize, int parallelism) {
+    this(blockSize, parallelism, DEFAULT_MAX_CODE_LENGTH);
+  }
+
+  /**
+   * Create an encoder.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of blocks encoded at the same time.
+   * @param maxCodeLength longest code, 8 to HuffCodebook.MAX_CODE_LENGTH.
+   */
+  public BlockEncoder(int blockSize, int parallelism, int maxCodeLength) {
+    this(blockSize, parallelism, maxCodeLength, 1);
+  }
+
+  /**
+   * Create an encoder.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of blocks encoded at the same time.
+   * @param maxCodeLength longest code, 8 to HuffCodebook.MAX_CODE_LENGTH.
+   * @param streams 1, or JmzFormat.MAX_STREAMS to split each block into that
+   *        many streams that decode side by side.
+   */
+  public BlockEncoder(int blockSize, int parallelism, int maxCodeLength, int streams) {
+    if (blockSize <= 0 || parallelism <= 0) {
+      throw new IllegalArgumentException("block size and parallelism must be positive");
+    }
+    if (maxCodeLength < 8 || maxCodeLength > HuffCodebook.MAX_CODE_LENGTH) {
+      throw new IllegalArgumentException("longest code must be 8 to "
+          + HuffCodebook.MAX_CODE_LENGTH + " bits");
+    }
+    if (streams != 1 && streams != JmzFormat.MAX_STREAMS) {
+      throw new IllegalArgumentException("streams must be 1 or " + JmzFormat.MAX_STREAMS);
+    }
+    this.blockSize = blockSize;
+    this.parallelism = parallelism;
+    this.maxCodeLength = maxCodeLength;
+    this.streams = streams;
+  }
+
+  /**
+   * compresses everything in in and writes the zipped file to out. Neither
+   * stream is closed.
+   *
+   * @param in stream to compress.
+   * @param out stream the zipped file is written to.
+   * @return length of the original data.
+   * @throws IOException if either stream fails.
+   */
+  public long compress(InputStream in, OutputStream out) throws IOException {
+    return compress(out, spare -> {
+      byte[] block = take(spare);
+      int read = in.readNBytes(block, 0, blockSize);
+      if (read == 0) {
+        spare.offer(block);
+        return null;
+      }
+      return () -> {
+        try {
+          return encodeBlock(block, read, spare);
+        } finally {
+          spare.offer(block);
+        }
+      };
+    }, -1, false);
+  }
+
+  /**
+   * compresses everything in in as it arrives, for pipes, sockets and other
+   * live streams. A block ends when it is full or when in has nothing more
+   * available for now, and it is encoded and written to out and out is
+   * flushed right away. So everything read so far can be unzipped while in is
+   * still open, after a delay of at most one block. Blocks are encoded on the
+   * calling thread one at a time. Neither stream is closed.
+   *
+   * <p>Every block carries its own code lengths, so short blocks cost more
+   * than full ones; the more in has to offer at once, the better it zips.
+   *
+   * @param in stream to compress.
+   * @param out stream the zipped file is written to.
+   * @return length of the original data.
+   * @throws IOException if either stream fails.
+   */
+  public long compressLive(InputStream in, OutputStream out) throws IOException {
+    byte[] block = new byte[blockSize];
+    return compress(out, spare -> {
+      int read = in.read(block, 0, blockSize);
+      if (read < 0) {
+        return null;
+      }
+      while (read < blockSize && in.available() > 0) {
+        int more = in.read(block, read, blockSize - read);
+        if (more < 0) {
+          break;
+        }
+        read += more;
+      }
+      int length = read;
+      return () -> encodeBlock(block, length, spare);
+    }, -1, true);
+  }
+
+  /**
+   * compresses a file and writes the zipped file to out. Each block is read
+   * into a spare array by the task that encodes it, so reading overlaps with
+   * encoding and only a few blocks per thread are on the heap at a time. in
+   * is read from its start up to its size when this is called, and neither
+   * in nor out is closed.
+   *
+   * @param in the file to compress.
+   * @param out stream the zipped file is written to.
+   * @return length of the original data.
+   * @throws IOException if the file or the stream fails.
+   */
+  public long compress(FileChannel in, OutputStream out) throws IOException {
+    long size = in.size();
+    long[] next = {0};
+    return compress(out, spare -> {
+      long position = next[0];
+      int length = (int) Math.min(blockSize, size - position);
+      if (length <= 0) {
+        return null;
+      }
+      next[0] += length;
+      return () -> {
+        byte[] block = take(spare, length);
+        try {
+          JmzFormat.readFully(in, ByteBuffer.wrap(block, 0, length), position);
+          return encodeBlock(block, length, spare);
+        } finally {
+          if (block.length == blockSize) {
+            spare.offer(block);
+          }
+        }
+      };
+    }, size, false);
+  }
+
+  /**
+   * encodes the blocks handed out by source on the pool and writes them to out
+   * in order. With a pool, blocks are read on a reader thread of their own
+   * and the calling thread only writes, see BlockPipeline, so reading,
+   * encoding and writing overlap and at most two blocks per thread are read
+   * ahead. A live source is read and encoded on the calling thread, so no
+   * block waits for later ones to be read, and out is flushed after every
+   * block. Arrays of blockSize bytes are handed back and forth through a queue
+   * of spares, so once the first few blocks are done no more are allocated.
+   *
+   * @param size length of the input, or -1 if it is not known.
+   */
+  private long compress(OutputStream out, BlockSource source, long size, boolean live)
+      throws IOException {
+    // With one thread or one block there is nothing to hand off, so skip the
+    // pool; a small message would spend far longer starting it than zipping.
+    ForkJoinPool pool = parallelism > 1 && !live && (size < 0 || size > blockSize)
+        ? new ForkJoinPool(parallelism) : null;
+    try {
+      DataOutputStream dataOut = new DataOutputStream(out);
+      JmzFormat.writeHeader(dataOut, blockSize);
+
+      long position = dataOut.size();
+      long length = 0;
+      long[] offsets = new long[16];
+      int[] lengths = new int[16];
+      int count = 0;
+      CRC32C checksum = new CRC32C();
+
+      Queue<byte[]> spare = new ConcurrentLinkedQueue<>();
+      try (BlockPipeline<EncodedBlock> blocks = new BlockPipeline<>(
+          pool != null ? 2 * parallelism : 0, () -> {
+            Callable<EncodedBlock> task = source.next(spare);
+            if (task == null) {
+              return null;
+            }
+            return pool != null ? pool.submit(task)
+                : CompletableFuture.completedFuture(call(task));
+          })) {
+        Future<EncodedBlock> next;
+        while ((next = blocks.take()) != null) {
+          EncodedBlock encoded = join(next);
+          if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+          }
+          offsets[count] = position;
+          lengths[count++] = encoded.length;
+          length += encoded.length;
+          position += encoded.writeTo(dataOut);
+          JmzFormat.addBlockChecksum(checksum, encoded.checksum);
+          if (encoded.payload != null && encoded.payload.length == blockSize) {
+            spare.offer(encoded.payload);
+          }
+          if (live) {
+            dataOut.flush();
+          }
+        }
+      }
+
+      JmzFormat.writeEnd(dataOut, position, offsets, lengths, count,
+          (int) checksum.getValue());
+      dataOut.flush();
+      return length;
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * compresses the bytes from the position to the limit of in and writes the
+   * zipped file to out. Blocks are encoded from in without copying them, and
+   * the position of in is moved to its limit. out is not closed.
+   *
+   * @param in bytes to compress.
+   * @param out stream the zipped file is written to.
+   * @return length of the original data.
+   * @throws IOException if the stream fails.
+   */
+  public long compress(ByteBuffer in, OutputStream out) throws IOException {
+    int end = in.limit();
+    return compress(out, spare -> {
+      int position = in.position();
+      int length = Math.min(blockSize, end - position);
+      if (length <= 0) {
+        return null;
+      }
+      ByteBuffer block = in.duplicate();
+      block.limit(position + length);
+      in.position(position + length);
+      return () -> encodeBlock(block, spare);
+    }, end - in.position(), false);
+  }
+
+  /**
+   * Hands out the blocks to encode, in order.
+   */
+  private interface BlockSource {
+
+    /**
+     * returns a task that encodes the next block, or null after the last one.
+     *
+     * @param spare arrays of blockSize bytes that are free to use.
+     */
+    Callable<EncodedBlock> next(Queue<byte[]> spare) throws IOException;
+
+  }
+
+  /**
+   * counts, builds the length limited codebook for and encodes one block.
+   *
+   * @param block the original bytes.
+   * @param length number of bytes used in block.
+   * @param spare arrays of blockSize bytes that are free to use.
+   * @return the encoded block.
+   */
+  EncodedBlock encodeBlock(byte[] block, int length, Queue<byte[]> spare) {
+    int[] freq = BuildHuffTree.countFreq(block, 0, length);
+    return encodeBlock(ByteBuffer.wrap(block, 0, length), freq, spare);
+  }
+
+  /**
+   * counts, builds the codebook for and encodes the bytes from the position
+   * to the limit of a buffer.
+   *
+   * @param block the original bytes, for example a mapped part of a file.
+   * @param spare arrays of blockSize bytes that are free to use.
+   * @return the encoded block.
+   */
+  EncodedBlock encodeBlock(ByteBuffer block, Queue<byte[]> spare) {
+    int[] freq = new int[256];
+    BuildHuffTree.countFreq(block, freq);
+    return encodeBlock(block, freq, spare);
+  }
+
+  /**
+   * picks the smallest way to write the bytes from the position to the limit
+   * of a buffer, as a run, as they are, or with their own length limited
+   * codebook, cut into segments with a stream each when the block is long
+   * enough. The entropy of the counts decides first, so data that no code
+   * would shrink is copied straight away without building one.
+   */
+  private EncodedBlock encodeBlock(ByteBuffer block, int[] freq, Queue<byte[]> spare) {
+    int length = block.remaining();
+    int checksum = JmzFormat.checksum(block);
+    int symbolCount = 0;
+    int value = 0;
+    for (int b = 0; b < 256; b++) {
+      if (freq[b] != 0) {
+        symbolCount++;
+        value = b;
+      }
+    }
+    if (symbolCount == 1) {
+      return EncodedBlock.run(length, checksum, value);
+    }
+
+    long stored = JmzFormat.STORED_HEADER_SIZE + length;
+    if (JmzFormat.blockHeaderLength(symbolCount, 1) + BuildHuffTree.entropyBits(freq) / 8
+        >= stored) {
+      return store(block, checksum, spare);
+    }
+    HuffCodebook codebook =
+        HuffCodebook.fromLengths(BuildHuffTree.codeLengths(freq, maxCodeLength));
+    int[] streamLengths = new int[length >= MIN_SPLIT_LENGTH ? streams : 1];
+    // Each stream but the first may add a byte of padding.
+    long coded = JmzFormat.blockHeaderLength(symbolCount, streamLengths.length)
+        + (BuildHuffTree.encodedBits(codebook, freq) + 7) / 8 + streamLengths.length - 1;
+    if (coded >= stored) {
+      return store(block, checksum, spare);
+    }
+
+    // Shorter than the block, so an array of its length always has room.
+    byte[] payload = take(spare, length);
+    int segment = JmzFormat.segmentLength(length, streamLengths.length);
+    int start = block.position();
+    int end = 0;
+    for (int i = 0; i < streamLengths.length; i++) {
+      ByteBuffer part = block.duplicate();
+      part.limit(start + Math.min((i + 1) * segment, length));
+      part.position(start + Math.min(i * segment, length));
+      int next = BuildHuffTree.encode(codebook, part, payload, end);
+      streamLengths[i] = next - end;
+      end = next;
+    }
+    return EncodedBlock.huffman(length, checksum, codebook, payload, streamLengths);
+  }
+
+  /**
+   * copies the bytes from the position to the limit of a buffer into a spare
+   * array to be written as they are.
+   */
+  private EncodedBlock store(ByteBuffer block, int checksum, Queue<byte[]> spare) {
+    int length = block.remaining();
+    byte[] payload = take(spare, length);
+    block.duplicate().get(payload, 0, length);
+    return EncodedBlock.stored(length, checksum, payload);
+  }
+
+  /**
+   * returns a spare array of blockSize bytes, or a new one if there is none.
+   */
+  private byte[] take(Queue<byte[]> spare) {
+    return take(spare, blockSize);
+  }
+
+  /**
+   * returns a spare array if there is one, or a new one of length bytes, so a
+   * message much shorter than a block does not cost a whole block.
+   */
+  private byte[] take(Queue<byte[]> spare, int length) {
+    byte[] array = spare.poll();
+    return array != null ? array : new byte[length];
+  }
+
+  /**
+   * runs a block task on the calling thread and passes on any IOException it
+   * threw.
+   */
+  static <T> T call(Callable<T> task) throws IOException {
+    try {
+      return task.call();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * waits for a block task and passes on any IOException it threw.
+   */
+  static <T> T join(Future<T> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", ie);
+    } catch (ExecutionException ee) {
+      // A ForkJoinPool wraps checked exceptions in RuntimeExceptions.
+      for (Throwable cause = ee.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+      }
+      throw new IOException(ee.getCause());
+    }
+  }
+
+  /**
+   * An encoded block waiting to be written.
+   */
+  static class EncodedBlock {
+
+    private final int length;
+    private final int type;
+    private final int checksum;
+    private final int value;
+    private final HuffCodebook codebook;
+    private final byte[] payload;
+    private final int[] streamLengths;
+
+    private EncodedBlock(int length, int type, int checksum, int value,
+        HuffCodebook codebook, byte[] payload, int[] streamLengths) {
+      this.length = length;
+      this.type = type;
+      this.checksum = checksum;
+      this.value = value;
+      this.codebook = codebook;
+      this.payload = payload;
+      this.streamLengths = streamLengths;
+    }
+
+    /**
+     * Return a block packed with codebook into streams that follow each
+     * other in payload.
+     */
+    static EncodedBlock huffman(int length, int checksum, HuffCodebook codebook,
+        byte[] payload, int[] streamLengths) {
+      return new EncodedBlock(length, JmzFormat.HUFFMAN, checksum, 0, codebook, payload,
+          streamLengths);
+    }
+
+    /**
+     * Return a block kept as it is, its bytes at the start of payload.
+     */
+    static EncodedBlock stored(int length, int checksum, byte[] payload) {
+      return new EncodedBlock(length, JmzFormat.STORED, checksum, 0, null, payload, null);
+    }
+
+    /**
+     * Return a block of length copies of the unsigned byte value.
+     */
+    static EncodedBlock run(int length, int checksum, int value) {
+      return new EncodedBlock(length, JmzFormat.RUN, checksum, value, null, null, null);
+    }
+
+    /**
+     * writes the block header and whatever follows it.
+     *
+     * @return number of bytes written.
+     */
+    long writeTo(DataOutputStream out) throws IOException {
+      if (type == JmzFormat.RUN) {
+        return JmzFormat.writeRunBlock(out, length, checksum, value);
+      } else if (type == JmzFormat.STORED) {
+        int written = JmzFormat.writeStoredBlockHeader(out, length, checksum);
+        out.write(payload, 0, length);
+        return written + length;
+      }
+
+      int payloadLength = 0;
+      for (int streamLength : streamLengths) {
+        payloadLength += streamLength;
+      }
+      int written = JmzFormat.writeBlockHeader(out, length, checksum, codebook, streamLengths);
+      out.write(payload, 0, payloadLength);
+      return written + payloadLength;
+    }
+
+  }
+
+}
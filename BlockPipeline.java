@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Read stage of a block coder. A reader thread pulls blocks from a source,
+ * which reads each one and hands it to the coding workers, and puts the
+ * pending results in a bounded queue; the calling thread takes them out in
+ * order and writes them. So reading the next blocks, coding the ones read
+ * and writing the ones coded all overlap, and once the queue is full the
+ * reader waits for the writer, so no more than capacity blocks are pending.
+ * With a capacity of 0 there is no reader thread and each block is read by
+ * take on the calling thread.
+ *
+ * @author jeromeli
+ *
+ */
+final class BlockPipeline<T> implements AutoCloseable {
+
+  /**
+   * Reads the next block and starts coding it.
+   */
+  interface Source<T> {
+
+    /**
+     * returns the pending result of the next block, or null after the last
+     * one.
+     */
+    Future<T> next() throws IOException;
+
+  }
+
+  private final Source<T> source;
+  private final BlockingQueue<Future<T>> queue;
+  private final Future<T> end = CompletableFuture.completedFuture(null);
+  private final Thread reader;
+  private boolean done;
+
+  /**
+   * Start reading blocks.
+   *
+   * @param capacity most blocks read ahead of the writer, 0 to read each
+   *        block on the calling thread when it is taken.
+   * @param source where the blocks come from.
+   */
+  BlockPipeline(int capacity, Source<T> source) {
+    this.source = source;
+    if (capacity == 0) {
+      queue = null;
+      reader = null;
+      return;
+    }
+    queue = new ArrayBlockingQueue<>(capacity);
+    reader = new Thread(this::read, "jmz-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * helper method run by the reader thread. A failure is queued like any
+   * other result, so the writer sees it in order. Anything the source throws,
+   * even an Error, ends up on the queue, so the writer is never left waiting.
+   */
+  private void read() {
+    Future<T> last = end;
+    try {
+      Future<T> next;
+      while ((next = source.next()) != null) {
+        queue.put(next);
+      }
+    } catch (InterruptedException ie) {
+      // The writer gave up, nobody is waiting for more.
+      return;
+    } catch (Throwable t) {
+      last = CompletableFuture.failedFuture(t);
+    }
+    try {
+      queue.put(last);
+    } catch (InterruptedException ie) {
+      // As above.
+    }
+  }
+
+  /**
+   * waits for the next block to be read.
+   *
+   * @return its pending result, or null after the last block.
+   * @throws IOException if reading it failed on the calling thread.
+   */
+  Future<T> take() throws IOException {
+    if (done) {
+      return null;
+    }
+    Future<T> next;
+    if (queue == null) {
+      next = source.next();
+    } else {
+      try {
+        next = queue.take();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", ie);
+      }
+    }
+    if (next == null || next == end) {
+      done = true;
+      return null;
+    }
+    return next;
+  }
+
+  /**
+   * stops the reader thread if it is still running, for example when writing
+   * failed, and waits for it to exit, so the source is no longer read once
+   * this returns. A reader blocked reading the source's stream stops as soon
+   * as that read returns.
+   */
+  @Override
+  public void close() {
+    if (reader == null) {
+      return;
+    }
+    reader.interrupt();
+    try {
+      reader.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -1,7 +1,9 @@
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.PriorityQueue;
 
 /**
@@ -11,10 +13,14 @@ import java.util.PriorityQueue;
  */
 public class BuildHuffTree {
 
-  public static PriorityQueue<HuffTree> queue;
+  /**
+   * frequencies set by readFreq and setSeqMap for buildTree(). Shared by every
+   * caller, so that pair of methods is not safe to use from several threads,
+   * everything else here keeps its state local. See HuffmanCodec.
+   */
   public static HashMap<Byte, Integer> frequency;
-  public static HashMap<Byte, String> seqMap;
-  public static Iterator<Integer> iterator;
+
+  private static final int BUFFER_SIZE = 1 << 16;
 
   /**
    * reads freq and puts it in a freq hashmap.
@@ -25,36 +31,169 @@ public class BuildHuffTree {
    */
   public static HashMap<Byte, Integer> readFreq(byte[] arr) throws IOException {
 
-    frequency = new HashMap<Byte, Integer>();
+    frequency = toMap(countFreq(arr, 0, arr.length));
+    return frequency;
 
-    for (byte b : arr) {
+  }
 
-      if (frequency.containsKey(b)) {
-        int temp = frequency.get(b).intValue();
-        frequency.put(b, ++temp);
-      } else {
-        frequency.put(b, 1);
+  /**
+   * counts the frequency of each byte in a stream through a fixed size
+   * buffer. Counts are longs, so streams of any length can be counted.
+   * 
+   * @param in stream to count.
+   * @return count of each unsigned byte value.
+   * @throws IOException ioexception.
+   */
+  public static long[] countFreq(InputStream in) throws IOException {
+
+    long[] counts = new long[256];
+    int[] chunk = new int[256];
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int count;
+
+    int pending = 0;
+    while ((count = in.read(buffer)) != -1) {
+      countFreq(buffer, 0, count, chunk);
+      // Move the counts over before an int could overflow.
+      pending += count;
+      if (pending > Integer.MAX_VALUE - BUFFER_SIZE) {
+        flush(chunk, counts);
+        pending = 0;
       }
+    }
+    flush(chunk, counts);
+    return counts;
+
+  }
 
+  /**
+   * counts the frequency of each byte in part of an array. Unlike readFreq it
+   * does not touch the static fields, so it is safe to call from several
+   * threads at once.
+   * 
+   * @param arr byte arr.
+   * @param off index of the first byte to count.
+   * @param len number of bytes to count.
+   * @return count of each unsigned byte value.
+   */
+  public static int[] countFreq(byte[] arr, int off, int len) {
+
+    int[] freq = new int[256];
+    countFreq(arr, off, len, freq);
+    return freq;
+
+  }
+
+  /**
+   * adds the frequency of each byte in part of an array to freq. Consecutive
+   * bytes are counted in four separate tables, so that a run of the same byte
+   * does not make each increment wait for the one before it to be stored.
+   * 
+   * @param arr byte arr.
+   * @param off index of the first byte to count.
+   * @param len number of bytes to count.
+   * @param freq count of each unsigned byte value, added to.
+   * @throws ArithmeticException if a count no longer fits in an int.
+   */
+  public static void countFreq(byte[] arr, int off, int len, int[] freq) {
+
+    int[] stripe1 = new int[256];
+    int[] stripe2 = new int[256];
+    int[] stripe3 = new int[256];
+    int[] stripe4 = new int[256];
+
+    int end = off + len;
+    int i = off;
+    for (; i + 3 < end; i += 4) {
+      stripe1[arr[i] & 0xFF]++;
+      stripe2[arr[i + 1] & 0xFF]++;
+      stripe3[arr[i + 2] & 0xFF]++;
+      stripe4[arr[i + 3] & 0xFF]++;
+    }
+    for (; i < end; i++) {
+      stripe1[arr[i] & 0xFF]++;
     }
 
-    return frequency;
+    for (int b = 0; b < 256; b++) {
+      freq[b] = Math.addExact(freq[b], stripe1[b] + stripe2[b] + stripe3[b] + stripe4[b]);
+    }
 
   }
 
+  /**
+   * adds the frequency of each byte from the position to the limit of buf to
+   * freq, the same way as countFreq(byte[], int, int, int[]). A buffer with no
+   * array, such as a mapped file, is copied out a chunk at a time, which is
+   * cheaper than getting its bytes one by one. The position of buf is not
+   * moved.
+   * 
+   * @param buf bytes to count, for example a mapped file.
+   * @param freq count of each unsigned byte value, added to.
+   * @throws ArithmeticException if a count no longer fits in an int.
+   */
+  public static void countFreq(ByteBuffer buf, int[] freq) {
+    if (buf.hasArray()) {
+      countFreq(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), freq);
+      return;
+    }
+    byte[] chunk = new byte[Math.min(buf.remaining(), BUFFER_SIZE)];
+    for (int i = buf.position(); i < buf.limit(); i += chunk.length) {
+      int len = Math.min(chunk.length, buf.limit() - i);
+      buf.get(i, chunk, 0, len);
+      countFreq(chunk, 0, len, freq);
+    }
+  }
+
+  /**
+   * helper method that adds chunk to counts and clears it.
+   */
+  private static void flush(int[] chunk, long[] counts) {
+    for (int b = 0; b < 256; b++) {
+      counts[b] += chunk[b];
+      chunk[b] = 0;
+    }
+  }
+
+  /**
+   * helper method that puts the non zero counts in a freq hashmap.
+   * 
+   * @param counts count of each unsigned byte value.
+   * @return hashmap.
+   */
+  private static HashMap<Byte, Integer> toMap(int[] counts) {
+    HashMap<Byte, Integer> freq = new HashMap<Byte, Integer>();
+    for (int b = 0; b < 256; b++) {
+      if (counts[b] != 0) {
+        freq.put((byte) b, counts[b]);
+      }
+    }
+    return freq;
+  }
+
   /**
    * builds hufftree.
    * 
    * @return hufftree.
    */
   public static HuffTree buildTree() {
+    return buildLegacyTree(frequency);
+  }
+
+  /**
+   * builds hufftree the way the old JMZip did, with ties broken by the
+   * iteration order of freq. Only needed to read old HuffmanSave files.
+   * 
+   * @param freq frequency of each byte, as saved in the HuffmanSave.
+   * @return hufftree.
+   */
+  public static HuffTree buildLegacyTree(Map<Byte, Integer> freq) {
 
-    queue = new PriorityQueue<HuffTree>();
-    for (Byte b : frequency.keySet()) {
-      queue.add(new HuffTree(b, frequency.get(b)));
+    PriorityQueue<HuffTree> queue = new PriorityQueue<HuffTree>();
+    for (Byte b : freq.keySet()) {
+      queue.add(new HuffTree(b, freq.get(b)));
 
-      if (frequency.keySet().size() == 1) {
-        return new HuffTree(b, frequency.get(b));
+      if (freq.keySet().size() == 1) {
+        return new HuffTree(b, freq.get(b));
       }
 
     }
@@ -73,6 +212,49 @@ public class BuildHuffTree {
     return tmp3;
   }
 
+  /**
+   * builds hufftree the same way for the same frequencies every time. Ties
+   * between equal weights go to the leaf with the smaller byte value first,
+   * then to the older internal node, so the result does not depend on the
+   * iteration order of the map.
+   * 
+   * @param freq frequency of each byte.
+   * @return hufftree, or null if freq is empty.
+   */
+  public static HuffTree buildTree(Map<Byte, Integer> freq) {
+
+    int[] counts = new int[256];
+    for (Map.Entry<Byte, Integer> entry : freq.entrySet()) {
+      counts[entry.getKey() & 0xFF] = entry.getValue();
+    }
+    return buildTree(counts);
+  }
+
+  /**
+   * builds hufftree the same way for the same frequencies every time, see
+   * buildTree(Map).
+   * 
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @return hufftree, or null if every count is 0.
+   */
+  public static HuffTree buildTree(int[] freq) {
+    return buildTree(widen(freq));
+  }
+
+  /**
+   * builds hufftree the same way for the same frequencies every time, see
+   * buildTree(Map). Weights are longs, so the counts may add up to anything
+   * that fits in a long. The tree is built in arrays by HuffArrayTree.build
+   * and then copied into nodes.
+   * 
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @return hufftree, or null if every count is 0.
+   */
+  public static HuffTree buildTree(long[] freq) {
+    HuffArrayTree tree = HuffArrayTree.build(freq);
+    return tree == null ? null : tree.toTree();
+  }
+
   /**
    * makes the bit sequence.
    * 
@@ -82,19 +264,22 @@ public class BuildHuffTree {
    */
   public static BitSequence encode(HuffTree tree, byte[] bytes) {
     BitSequence onesNZeros = new BitSequence();
-    seqMap = new HashMap<>();
 
     if (bytes.length == 0) {
       return onesNZeros;
     }
-    if (bytes.length == 1) {
-      seqMap.put(bytes[0], "0");
-      onesNZeros.appendBits(seqMap.get(bytes[0]));
+    if (tree.root().isLeaf()) {
+      // Only one distinct byte, its code is a single 0.
+      for (int i = 0; i < bytes.length; i++) {
+        onesNZeros.appendBit(0);
+      }
     } else {
-      encode(tree.root(), "");
+      HuffArrayTree arrays = HuffArrayTree.fromTree(tree);
+      long[] codes = arrays.codes();
+      int[] lengths = arrays.codeLengths();
 
       for (byte b : bytes) {
-        onesNZeros.appendBits(seqMap.get(b));
+        onesNZeros.appendBits(codes[b & 0xFF], lengths[b & 0xFF]);
       }
     }
 
@@ -102,29 +287,285 @@ public class BuildHuffTree {
   }
 
   /**
-   * helper traverse method, it appends binary stuff to the sequence.
+   * returns the number of bits encoding bytes with the given counts takes.
    * 
-   * @param node root node.
-   * @param bits the sequence.
+   * @param codebook codes to use.
+   * @param freq count of each unsigned byte value.
+   * @return number of bits, 0 when the codebook has a single byte.
    */
-  public static void encode(HuffBaseNode node, String bits) {
+  public static long encodedBits(HuffCodebook codebook, int[] freq) {
+    if (codebook.symbolCount() < 2) {
+      return 0;
+    }
+    long bits = 0;
+    for (int b = 0; b < 256; b++) {
+      bits += (long) freq[b] * codebook.length(b);
+    }
+    return bits;
+  }
 
-    if (node.isLeaf()) {
+  /**
+   * estimates the fewest bits any code could take for bytes with the given
+   * counts, their entropy. A Huffman code is never shorter and never more
+   * than a bit per byte longer.
+   * 
+   * @param freq count of each unsigned byte value.
+   * @return number of bits.
+   */
+  public static double entropyBits(int[] freq) {
+    long total = 0;
+    for (int count : freq) {
+      total += count;
+    }
+    double bits = 0;
+    for (int count : freq) {
+      if (count != 0) {
+        bits += count * Math.log((double) total / count);
+      }
+    }
+    return bits / Math.log(2);
+  }
 
-      HuffLeafNode leaf = (HuffLeafNode) node;
-      seqMap.put(leaf.value(), bits);
-      return;
+  /**
+   * encodes part of an array straight into dst, the same way as
+   * encode(HuffCodebook, ByteBuffer, byte[], int).
+   * 
+   * @param codebook codes to write for each byte.
+   * @param arr byte arr.
+   * @param off index of the first byte to encode.
+   * @param len number of bytes to encode.
+   * @param dst array the bits are stored in, with room for the number of
+   *        bytes encodedBits gives, rounded up.
+   * @param dstOff index of the first byte to store in dst.
+   * @return index in dst after the last byte stored.
+   */
+  public static int encode(HuffCodebook codebook, byte[] arr, int off, int len, byte[] dst,
+      int dstOff) {
+    return encode(codebook, ByteBuffer.wrap(arr, off, len), dst, dstOff);
+  }
 
+  /**
+   * encodes the bytes from the position to the limit of buf straight into
+   * dst. The bits are gathered in a long and stored four bytes at a time, and
+   * codes are read from the codebook without copying its arrays, so nothing
+   * is allocated. Nothing is written when the codebook has a single byte.
+   * The position of buf is not moved.
+   * 
+   * @param codebook codes to write for each byte.
+   * @param buf bytes to encode, for example a mapped file.
+   * @param dst array the bits are stored in, with room for the number of
+   *        bytes encodedBits gives, rounded up.
+   * @param dstOff index of the first byte to store in dst.
+   * @return index in dst after the last byte stored.
+   */
+  public static int encode(HuffCodebook codebook, ByteBuffer buf, byte[] dst, int dstOff) {
+
+    if (codebook.symbolCount() < 2) {
+      return dstOff;
     }
 
-    HuffInternalNode internal = (HuffInternalNode) node;
-    encode(internal.left(), bits + "0");
-    encode(internal.right(), bits + "1");
+    long bits = 0;
+    int count = 0;
+    int pos = dstOff;
+    for (int i = buf.position(); i < buf.limit(); i++) {
+      int b = buf.get(i) & 0xFF;
+      int length = codebook.length(b);
+      long code = codebook.code(b);
+      if (length > 32) {
+        // Only fits in two goes.
+        bits |= (code & 0xFFFFFFFFL) << count;
+        pos = store(bits, dst, pos);
+        bits = (bits >>> 32) | (code >>> 32) << count;
+        count += length - 32;
+      } else {
+        bits |= code << count;
+        count += length;
+      }
+      if (count >= 32) {
+        pos = store(bits, dst, pos);
+        bits >>>= 32;
+        count -= 32;
+      }
+    }
+    return finish(bits, count, dst, pos);
+  }
 
+  /**
+   * helper method that stores the low 32 bits, lowest byte first.
+   */
+  private static int store(long bits, byte[] dst, int pos) {
+    dst[pos] = (byte) bits;
+    dst[pos + 1] = (byte) (bits >>> 8);
+    dst[pos + 2] = (byte) (bits >>> 16);
+    dst[pos + 3] = (byte) (bits >>> 24);
+    return pos + 4;
   }
 
   /**
-   * decodes the sequence.
+   * helper method that stores the last count bits, padded with 0's to a
+   * whole byte.
+   */
+  private static int finish(long bits, int count, byte[] dst, int pos) {
+    for (; count > 0; count -= 8) {
+      dst[pos++] = (byte) bits;
+      bits >>>= 8;
+    }
+    return pos;
+  }
+
+  /**
+   * finds the code length of every byte in the tree.
+   * 
+   * @param tree the tree, or null for an empty file.
+   * @return array indexed by unsigned byte value, 0 for bytes not in the tree.
+   *         A tree with a single leaf gives that byte length 1, even though
+   *         no bits are written for it.
+   */
+  public static int[] codeLengths(HuffTree tree) {
+    return tree == null ? new int[256] : HuffArrayTree.fromTree(tree).codeLengths();
+  }
+
+  /**
+   * finds code lengths for freq that are no longer than maxLength. If the
+   * Huffman tree already fits these are its code lengths, otherwise the
+   * lengths come from package-merge, which gives the shortest total encoding
+   * of any code that fits.
+   * 
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @param maxLength longest code allowed.
+   * @return array indexed by unsigned byte value, 0 for bytes not used.
+   * @throws IllegalArgumentException if maxLength is too short for the number
+   *         of bytes used.
+   */
+  public static int[] codeLengths(int[] freq, int maxLength) {
+    return codeLengths(widen(freq), maxLength);
+  }
+
+  /**
+   * finds code lengths for freq that are no longer than maxLength, see
+   * codeLengths(int[], int).
+   * 
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @param maxLength longest code allowed.
+   * @return array indexed by unsigned byte value, 0 for bytes not used.
+   * @throws IllegalArgumentException if maxLength is too short for the number
+   *         of bytes used.
+   */
+  public static int[] codeLengths(long[] freq, int maxLength) {
+    HuffArrayTree tree = HuffArrayTree.build(freq);
+    int[] lengths = tree == null ? new int[256] : tree.codeLengths();
+
+    int n = 0;
+    int longest = 0;
+    for (int b = 0; b < 256; b++) {
+      if (freq[b] != 0) {
+        n++;
+        longest = Math.max(longest, lengths[b]);
+      }
+    }
+    if (maxLength < 1 || maxLength < 31 && n > 1 << maxLength) {
+      throw new IllegalArgumentException("codes of " + maxLength + " bits cannot hold "
+          + n + " bytes");
+    }
+    if (longest <= maxLength) {
+      return lengths;
+    }
+
+    // Leaves in order of weight, ties by byte value.
+    int[] leaves = new int[n];
+    n = 0;
+    for (int b = 0; b < 256; b++) {
+      if (freq[b] != 0) {
+        leaves[n++] = b;
+      }
+    }
+    sortByWeight(leaves, freq);
+
+    // items[t] holds the coins of list t in order of weight, each either a
+    // byte value or -1 for a package of the first two unused coins of list
+    // t - 1. List 0 is just the leaves.
+    int[][] items = new int[maxLength][];
+    long[] weights = new long[n];
+    for (int i = 0; i < n; i++) {
+      weights[i] = freq[leaves[i]];
+    }
+    items[0] = leaves.clone();
+    for (int t = 1; t < maxLength; t++) {
+      int packages = weights.length / 2;
+      int[] merged = new int[n + packages];
+      long[] mergedWeights = new long[n + packages];
+      int leaf = 0;
+      int pack = 0;
+      for (int k = 0; k < merged.length; k++) {
+        // A package can outweigh all the bytes put together, so stop at the
+        // largest long rather than wrap around.
+        long packWeight = 0;
+        if (pack < packages) {
+          packWeight = weights[2 * pack] + weights[2 * pack + 1];
+          packWeight = packWeight < 0 ? Long.MAX_VALUE : packWeight;
+        }
+        if (pack == packages || leaf < n && freq[leaves[leaf]] <= packWeight) {
+          merged[k] = leaves[leaf];
+          mergedWeights[k] = freq[leaves[leaf++]];
+        } else {
+          merged[k] = -1;
+          mergedWeights[k] = packWeight;
+          pack++;
+        }
+      }
+      items[t] = merged;
+      weights = mergedWeights;
+    }
+
+    // The first 2n - 2 coins of the last list make up the code. Each time a
+    // byte is among the chosen coins of a list its code gets one bit longer,
+    // and the chosen packages of a list are the first ones, which stand for
+    // the first two coins each of the list before it.
+    Arrays.fill(lengths, 0);
+    int take = 2 * n - 2;
+    for (int t = maxLength - 1; t >= 0; t--) {
+      int packages = 0;
+      for (int k = 0; k < take; k++) {
+        if (items[t][k] < 0) {
+          packages++;
+        } else {
+          lengths[items[t][k]]++;
+        }
+      }
+      take = 2 * packages;
+    }
+    return lengths;
+  }
+
+  /**
+   * helper method that copies int counts into longs.
+   */
+  private static long[] widen(int[] freq) {
+    long[] wide = new long[freq.length];
+    for (int b = 0; b < freq.length; b++) {
+      wide[b] = freq[b];
+    }
+    return wide;
+  }
+
+  /**
+   * helper method that sorts byte values by freq, then by value.
+   */
+  static void sortByWeight(int[] bytes, long[] freq) {
+    for (int i = 1; i < bytes.length; i++) {
+      int b = bytes[i];
+      int j = i - 1;
+      while (j >= 0 && freq[bytes[j]] > freq[b]) {
+        bytes[j + 1] = bytes[j];
+        j--;
+      }
+      bytes[j + 1] = b;
+    }
+  }
+
+  /**
+   * decodes the sequence straight into an array sized from the weight of the
+   * tree, which is the original length for a tree built from frequencies.
    * 
    * @param tree tree to traverse.
    * @param onesNZeros bit sequence from huff save.
@@ -132,57 +573,175 @@ public class BuildHuffTree {
    */
   public static byte[] decodeSeq(HuffTree tree, BitSequence onesNZeros) {
 
-    ArrayList<Byte> list = new ArrayList<>();
-
-    byte[] result = new byte[0];
-
     if (onesNZeros.length() == 0) {
+      return new byte[0];
+    } else if (tree.root().isLeaf()) {
+      byte[] result = new byte[onesNZeros.length()];
+      Arrays.fill(result, ((HuffLeafNode) tree.root()).value());
       return result;
-    } else if (onesNZeros.length() == 1) {
-      HuffLeafNode leaf = (HuffLeafNode) tree.root();
-      list.add(leaf.value());
-      result = new byte[list.size()];
-      result[0] = list.get(0);
-    } else {
+    }
 
-      iterator = onesNZeros.iterator();
-      while (iterator.hasNext()) {
-        decodeTree(tree.root(), list);
-      }
-      result = new byte[list.size()];
-      for (int i = 0; i < list.size(); i++) {
+    return new HuffDecodeTable(tree).decode(onesNZeros, expectedLength(tree, onesNZeros));
+  }
 
-        result[i] = list.get(i);
+  /**
+   * helper method that guesses how many bytes a sequence decodes to. Every
+   * code is at least one bit, so the weight of the tree is only trusted up to
+   * the number of bits.
+   */
+  private static int expectedLength(HuffTree tree, BitSequence onesNZeros) {
+    long weight = tree.weight();
+    return weight > 0 ? (int) Math.min(weight, onesNZeros.length())
+        : onesNZeros.length() / 8;
+  }
 
-      }
+  /**
+   * decodes len bytes from a bit stream into part of an array.
+   * 
+   * @param codebook codes the stream was written with.
+   * @param in bit stream to decode.
+   * @param out array the decoded bytes are written to.
+   * @param off index of the first decoded byte in out.
+   * @param len number of bytes to decode.
+   * @throws IOException ioexception.
+   */
+  public static void decode(HuffCodebook codebook, BitInputStream in, byte[] out, int off,
+      int len) throws IOException {
 
+    if (len == 0) {
+      return;
+    }
+    HuffArrayTree tree = codebook.tree();
+    if (tree.leafCount() == 1) {
+      Arrays.fill(out, off, off + len, tree.symbol(0));
+      return;
+    }
+
+    codebook.decodeTable().decode(in, out, off, len);
+  }
+
+  /**
+   * decodes count bytes from a bit stream and drops them.
+   * 
+   * @param codebook codes the stream was written with.
+   * @param in bit stream to decode.
+   * @param count number of bytes to skip.
+   * @throws IOException ioexception.
+   */
+  public static void skip(HuffCodebook codebook, BitInputStream in, int count)
+      throws IOException {
+    // A single byte is written with no bits, so there is nothing to skip.
+    if (count != 0 && codebook.tree().leafCount() > 1) {
+      codebook.decodeTable().skip(in, count);
+    }
+  }
+
+  /**
+   * decodes exactly len bytes with codebook and puts them in out, for example
+   * a mapped part of the original file.
+   * 
+   * @param codebook codes the bytes were encoded with.
+   * @param in stream of encoded bits.
+   * @param out buffer with room for len bytes.
+   * @param len number of bytes to decode.
+   * @throws IOException ioexception.
+   */
+  public static void decode(HuffCodebook codebook, BitInputStream in, ByteBuffer out,
+      int len) throws IOException {
+
+    if (len == 0) {
+      return;
+    }
+    HuffArrayTree tree = codebook.tree();
+    if (tree.leafCount() == 1) {
+      byte value = tree.symbol(0);
+      for (int i = 0; i < len; i++) {
+        out.put(value);
+      }
+      return;
     }
 
+    codebook.decodeTable().decode(in, out, len);
+  }
 
-    return result;
+  /**
+   * decodes len bytes from the streams of a block into part of an array.
+   * 
+   * @param codebook codes the streams were written with.
+   * @param in the bytes of a single stream, or of four that each hold a
+   *        segment of the block, see JmzFormat.
+   * @param out array the decoded bytes are written to.
+   * @param off index of the first decoded byte in out.
+   * @param len number of bytes to decode.
+   * @throws IOException ioexception.
+   */
+  public static void decode(HuffCodebook codebook, ByteBuffer[] in, byte[] out, int off,
+      int len) throws IOException {
+
+    if (in.length == 1 || codebook.symbolCount() == 1) {
+      decode(codebook, new BitInputStream(in[0]), out, off, len);
+      return;
+    }
+    codebook.decodeTable().decode(in, out, off, len);
   }
 
   /**
-   * helper method.
+   * decodes exactly len bytes from the streams of a block and puts them in
+   * out, see decode(HuffCodebook, ByteBuffer[], byte[], int, int).
    * 
-   * @param node tree node to traverse.
-   * @param list list that keeps track of bytes.
+   * @param codebook codes the streams were written with.
+   * @param in the bytes of a single stream, or of four that each hold a
+   *        segment.
+   * @param out buffer with room for len bytes.
+   * @param len number of bytes to decode.
+   * @throws IOException ioexception.
    */
-  private static void decodeTree(HuffBaseNode node, ArrayList<Byte> list) {
+  public static void decode(HuffCodebook codebook, ByteBuffer[] in, ByteBuffer out,
+      int len) throws IOException {
 
-    if (node.isLeaf()) {
-      HuffLeafNode leaf = (HuffLeafNode) node;
-      list.add(leaf.value());
+    if (in.length == 1 || codebook.symbolCount() == 1) {
+      decode(codebook, new BitInputStream(in[0]), out, len);
       return;
+    }
+    codebook.decodeTable().decode(in, out, len);
+  }
+
+  /**
+   * decodes the sequence by walking the tree one bit at a time. This gives the
+   * same result as decodeSeq and is kept as a reference for testing and
+   * benchmarking the table driven decoder.
+   * 
+   * @param tree tree to traverse.
+   * @param onesNZeros bit sequence from huff save.
+   * @return byte arr.
+   */
+  public static byte[] decodeSeqBitwise(HuffTree tree, BitSequence onesNZeros) {
 
+    int numBits = onesNZeros.length();
+    if (numBits > 0 && tree.root().isLeaf()) {
+      byte[] result = new byte[numBits];
+      Arrays.fill(result, ((HuffLeafNode) tree.root()).value());
+      return result;
     }
 
-    HuffInternalNode internal = (HuffInternalNode) node;
-    if (iterator.hasNext() && iterator.next() == 1) {
-      decodeTree(internal.right(), list);
-    } else {
-      decodeTree(internal.left(), list);
+    byte[] result = new byte[Math.max(expectedLength(tree, onesNZeros), 16)];
+    int count = 0;
+    int pos = 0;
+    while (pos < numBits) {
+      // Bits past the end read as 0.
+      HuffBaseNode node = tree.root();
+      while (!node.isLeaf()) {
+        HuffInternalNode internal = (HuffInternalNode) node;
+        node = pos < numBits && onesNZeros.getBit(pos) == 1 ? internal.right()
+            : internal.left();
+        pos++;
+      }
+      if (count == result.length) {
+        result = Arrays.copyOf(result, 2 * count);
+      }
+      result[count++] = ((HuffLeafNode) node).value();
     }
+    return count == result.length ? result : Arrays.copyOf(result, count);
   }
 
   /**
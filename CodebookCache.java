@@ -0,0 +1,216 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of codebooks keyed by their code lengths, which drops the
+ * least recently used one when full. A codebook keeps its tree and decoding
+ * table once they are built, so blocks, files and archive entries with the
+ * same code lengths share one codebook and only the first one pays for
+ * building the tables. JmzFormat reads every block header through the
+ * shared cache; the encoder works out new code lengths for every block
+ * anyway, so it builds its codebooks itself.
+ *
+ * <p>The cache is split into stripes of about eight codebooks, each with its
+ * own lock, picked by the hash of the code lengths, so threads reading
+ * different blocks seldom wait for each other. Each stripe drops its own
+ * least recently used codebook. All methods are safe to call from several
+ * threads.
+ *
+ * @author jeromeli
+ *
+ */
+public final class CodebookCache {
+
+  /** Number of codebooks the shared cache keeps. */
+  public static final int DEFAULT_CAPACITY = 64;
+
+  private static final int STRIPE_CAPACITY = 8;
+
+  private static final CodebookCache SHARED = new CodebookCache(DEFAULT_CAPACITY);
+
+  private final int capacity;
+  private final Stripe[] stripes;
+
+  /**
+   * Create an empty cache.
+   *
+   * @param capacity most codebooks kept at once.
+   */
+  public CodebookCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.stripes = new Stripe[Math.max(1, capacity / STRIPE_CAPACITY)];
+    for (int i = 0; i < stripes.length; i++) {
+      // Spread what is left over, so the stripes add up to capacity.
+      stripes[i] = new Stripe(capacity / stripes.length
+          + (i < capacity % stripes.length ? 1 : 0));
+    }
+  }
+
+  /**
+   * Return the cache shared by the whole process.
+   */
+  public static CodebookCache shared() {
+    return SHARED;
+  }
+
+  /**
+   * returns the codebook for the given code lengths, building it only if the
+   * cache does not hold one already.
+   *
+   * @param lengths code length of each unsigned byte value, 0 if unused.
+   * @return the codebook.
+   * @throws IllegalArgumentException if the lengths do not form a complete
+   *         prefix code.
+   */
+  public HuffCodebook get(int[] lengths) {
+    Key key = new Key(lengths);
+    // Code lengths differ in few places, so mix the hash to spread them out.
+    int mixed = key.hash * 0x9E3779B9;
+    Stripe stripe = stripes[Math.floorMod(mixed ^ (mixed >>> 16), stripes.length)];
+    synchronized (stripe) {
+      HuffCodebook codebook = stripe.codebooks.get(key);
+      if (codebook != null) {
+        stripe.hits++;
+        return codebook;
+      }
+      stripe.misses++;
+    }
+
+    // Build outside the lock; if two threads race, the first one in is kept.
+    HuffCodebook codebook = HuffCodebook.fromLengths(lengths);
+    synchronized (stripe) {
+      HuffCodebook cached = stripe.codebooks.putIfAbsent(new Key(codebook.lengths()), codebook);
+      return cached != null ? cached : codebook;
+    }
+  }
+
+  /**
+   * Return the number of lookups that found a codebook.
+   */
+  public long getHits() {
+    long hits = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        hits += stripe.hits;
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * Return the number of lookups that had to build one.
+   */
+  public long getMisses() {
+    long misses = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        misses += stripe.misses;
+      }
+    }
+    return misses;
+  }
+
+  /**
+   * Return the number of codebooks dropped to make room.
+   */
+  public long getEvictions() {
+    long evictions = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        evictions += stripe.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  /**
+   * Return the number of codebooks held.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.codebooks.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * drops every codebook and resets the counts.
+   */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.codebooks.clear();
+        stripe.hits = 0;
+        stripe.misses = 0;
+        stripe.evictions = 0;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "codebooks " + size() + "/" + capacity + ", hits " + getHits() + ", misses "
+        + getMisses() + ", evictions " + getEvictions();
+  }
+
+  /**
+   * Part of the cache with its own lock, its own least recently used order
+   * and its own counts. Only touched while holding its lock.
+   */
+  private static final class Stripe {
+
+    private final Map<Key, HuffCodebook> codebooks;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    Stripe(int capacity) {
+      // In access order, so the eldest entry is the least recently used.
+      this.codebooks = new LinkedHashMap<Key, HuffCodebook>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, HuffCodebook> eldest) {
+          if (size() > capacity) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+  }
+
+  /**
+   * Code lengths as a map key, with the hash worked out once.
+   */
+  private static final class Key {
+
+    private final int[] lengths;
+    private final int hash;
+
+    Key(int[] lengths) {
+      this.lengths = lengths;
+      this.hash = Arrays.hashCode(lengths);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && hash == ((Key) other).hash
+          && Arrays.equals(lengths, ((Key) other).lengths);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+  }
+
+}
@@ -0,0 +1,351 @@
+import java.util.Arrays;
+
+/**
+ * Huffman tree kept in flat arrays instead of node objects. Nodes are
+ * numbered, leaves first: node i below leafCount is a leaf for byte
+ * symbol(i), every other node is internal with its children at
+ * children[2i] and children[2i + 1]. Walking the tree is then just indexing
+ * into a few primitive arrays, with no casts or isLeaf() calls on objects.
+ *
+ * @author jeromeli
+ *
+ */
+public final class HuffArrayTree {
+
+  private final int leafCount;
+  private final byte[] symbols;
+  private final long[] weights;
+  private final int[] parents;
+  private final int[] children;
+  private final int root;
+
+  /**
+   * Private constructor, use one of the factory methods.
+   */
+  private HuffArrayTree(int leafCount, int nodeCount) {
+    this.leafCount = leafCount;
+    symbols = new byte[leafCount];
+    weights = new long[nodeCount];
+    parents = new int[nodeCount];
+    children = new int[2 * nodeCount];
+    Arrays.fill(parents, -1);
+    Arrays.fill(children, -1);
+    root = leafCount == 1 ? 0 : nodeCount - 1;
+  }
+
+  /**
+   * builds the tree for freq with the two-queue method: once the leaves are
+   * sorted by weight, internal nodes come out in order of weight too, so the
+   * two lightest nodes are always at the head of one of the two queues. Ties
+   * go to the leaf with the smaller byte value, then to the older internal
+   * node, which gives the same tree as BuildHuffTree.buildTree(long[]).
+   *
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @return the tree, or null if every count is 0.
+   */
+  public static HuffArrayTree build(long[] freq) {
+    int n = 0;
+    for (int b = 0; b < 256; b++) {
+      if (freq[b] != 0) {
+        n++;
+      }
+    }
+    if (n == 0) {
+      return null;
+    }
+
+    int[] bytes = new int[n];
+    n = 0;
+    for (int b = 0; b < 256; b++) {
+      if (freq[b] != 0) {
+        bytes[n++] = b;
+      }
+    }
+    BuildHuffTree.sortByWeight(bytes, freq);
+
+    HuffArrayTree tree = new HuffArrayTree(n, 2 * n - 1);
+    for (int i = 0; i < n; i++) {
+      tree.symbols[i] = (byte) bytes[i];
+      tree.weights[i] = freq[bytes[i]];
+    }
+
+    // The leaves are one queue and the internal nodes made so far the other.
+    int leaf = 0;
+    int internal = n;
+    for (int next = n; next < 2 * n - 1; next++) {
+      for (int bit = 0; bit < 2; bit++) {
+        int node;
+        if (leaf < n && (internal == next || tree.weights[leaf] <= tree.weights[internal])) {
+          node = leaf++;
+        } else {
+          node = internal++;
+        }
+        tree.children[2 * next + bit] = node;
+        tree.parents[node] = next;
+      }
+      tree.weights[next] = Math.addExact(tree.weights[tree.children[2 * next]],
+          tree.weights[tree.children[2 * next + 1]]);
+    }
+    return tree;
+  }
+
+  /**
+   * copies a tree of node objects, for example one read from an old
+   * HuffmanSave.
+   *
+   * @param tree the tree.
+   * @return the same tree in arrays.
+   */
+  public static HuffArrayTree fromTree(HuffTree tree) {
+    // Nodes in preorder, so reversed every node comes after its children.
+    HuffBaseNode[] order = new HuffBaseNode[16];
+    HuffBaseNode[] stack = new HuffBaseNode[16];
+    int count = 0;
+    int leaves = 0;
+    int top = 0;
+    stack[top++] = tree.root();
+    while (top > 0) {
+      HuffBaseNode node = stack[--top];
+      if (count == order.length) {
+        order = Arrays.copyOf(order, 2 * count);
+      }
+      order[count++] = node;
+      if (node.isLeaf()) {
+        leaves++;
+      } else {
+        if (top + 2 > stack.length) {
+          stack = Arrays.copyOf(stack, 2 * stack.length);
+        }
+        HuffInternalNode internal = (HuffInternalNode) node;
+        stack[top++] = internal.right();
+        stack[top++] = internal.left();
+      }
+    }
+
+    HuffArrayTree result = new HuffArrayTree(leaves, count);
+    int[] pending = new int[count];
+    int leaf = 0;
+    int next = leaves;
+    top = 0;
+    for (int i = count - 1; i >= 0; i--) {
+      HuffBaseNode node = order[i];
+      int index;
+      if (node.isLeaf()) {
+        index = leaf++;
+        result.symbols[index] = ((HuffLeafNode) node).value();
+      } else {
+        // The left subtree was pushed last.
+        index = next++;
+        result.link(index, pending[--top], pending[--top]);
+      }
+      result.weights[index] = node.weight();
+      pending[top++] = index;
+    }
+    return result;
+  }
+
+  /**
+   * builds the tree of a prefix code.
+   *
+   * @param codes code of each unsigned byte value, first bit in the lowest
+   *        position.
+   * @param lengths code length of each unsigned byte value, 0 if unused. The
+   *        lengths must form a complete code; a single byte has length 1.
+   * @return the tree, or null if no byte has a code.
+   */
+  public static HuffArrayTree fromCodes(long[] codes, int[] lengths) {
+    int n = 0;
+    for (int b = 0; b < 256; b++) {
+      if (lengths[b] != 0) {
+        n++;
+      }
+    }
+    if (n == 0) {
+      return null;
+    }
+
+    HuffArrayTree tree = new HuffArrayTree(n, 2 * n - 1);
+    int leaf = 0;
+    int next = n;
+    for (int b = 0; b < 256; b++) {
+      if (lengths[b] == 0) {
+        continue;
+      }
+      tree.symbols[leaf] = (byte) b;
+      if (n == 1) {
+        break;
+      }
+      int node = tree.root;
+      for (int depth = 0; depth < lengths[b] - 1; depth++) {
+        int bit = (int) (codes[b] >>> depth) & 1;
+        if (tree.children[2 * node + bit] < 0) {
+          // The root is the last node, the rest are numbered as they appear.
+          tree.children[2 * node + bit] = next;
+          tree.parents[next++] = node;
+        }
+        node = tree.children[2 * node + bit];
+      }
+      int bit = (int) (codes[b] >>> (lengths[b] - 1)) & 1;
+      tree.children[2 * node + bit] = leaf;
+      tree.parents[leaf++] = node;
+    }
+    return tree;
+  }
+
+  /**
+   * helper method that makes left and right the children of parent.
+   */
+  private void link(int parent, int left, int right) {
+    children[2 * parent] = left;
+    children[2 * parent + 1] = right;
+    parents[left] = parent;
+    parents[right] = parent;
+  }
+
+  /**
+   * Return the number of leaves, one for each byte with a code.
+   */
+  public int leafCount() {
+    return leafCount;
+  }
+
+  /**
+   * Return the number of nodes.
+   */
+  public int nodeCount() {
+    return weights.length;
+  }
+
+  /**
+   * Return the root node. A tree with a single byte is just that leaf.
+   */
+  public int root() {
+    return root;
+  }
+
+  /**
+   * Return whether node is a leaf.
+   *
+   * @param node node number.
+   */
+  public boolean isLeaf(int node) {
+    return node < leafCount;
+  }
+
+  /**
+   * Return the byte of a leaf.
+   *
+   * @param leaf leaf number.
+   */
+  public byte symbol(int leaf) {
+    return symbols[leaf];
+  }
+
+  /**
+   * Return the child of an internal node reached by bit.
+   *
+   * @param node internal node number.
+   * @param bit 0 for the left child, 1 for the right.
+   */
+  public int child(int node, int bit) {
+    return children[2 * node + bit];
+  }
+
+  /**
+   * Return the parent of node, -1 for the root.
+   *
+   * @param node node number.
+   */
+  public int parent(int node) {
+    return parents[node];
+  }
+
+  /**
+   * Return the weight of node, 0 for a tree built from codes.
+   *
+   * @param node node number.
+   */
+  public long weight(int node) {
+    return weights[node];
+  }
+
+  /**
+   * Return the weight of the root, the total count for a tree built from
+   * frequencies.
+   */
+  public long weight() {
+    return weights[root];
+  }
+
+  /**
+   * finds the code length of every byte, counting the parents up from each
+   * leaf. A tree with a single leaf gives that byte length 1, even though no
+   * bits are written for it.
+   *
+   * @return array indexed by unsigned byte value, 0 for bytes not in the tree.
+   */
+  public int[] codeLengths() {
+    int[] lengths = new int[256];
+    for (int leaf = 0; leaf < leafCount; leaf++) {
+      int depth = 0;
+      for (int node = leaf; node != root; node = parents[node]) {
+        depth++;
+      }
+      lengths[symbols[leaf] & 0xFF] = Math.max(depth, 1);
+    }
+    return lengths;
+  }
+
+  /**
+   * finds the code of every byte by following the parents up from each leaf.
+   * The code of a single leaf is a single 0.
+   *
+   * @return array indexed by unsigned byte value, each code with its first
+   *         bit in the lowest position.
+   */
+  public long[] codes() {
+    long[] codes = new long[256];
+    for (int leaf = 0; leaf < leafCount; leaf++) {
+      long code = 0;
+      for (int node = leaf; node != root; node = parents[node]) {
+        code = code << 1 | (children[2 * parents[node]] == node ? 0 : 1);
+      }
+      codes[symbols[leaf] & 0xFF] = code;
+    }
+    return codes;
+  }
+
+  /**
+   * copies the tree into node objects.
+   *
+   * @return the tree.
+   */
+  public HuffTree toTree() {
+    HuffBaseNode[] nodes = new HuffBaseNode[weights.length];
+    // Every node is visited after its children.
+    int[] order = new int[weights.length];
+    int count = 0;
+    int[] stack = new int[weights.length];
+    int top = 0;
+    stack[top++] = root;
+    while (top > 0) {
+      int node = stack[--top];
+      order[count++] = node;
+      if (node >= leafCount) {
+        stack[top++] = children[2 * node];
+        stack[top++] = children[2 * node + 1];
+      }
+    }
+    for (int i = count - 1; i >= 0; i--) {
+      int node = order[i];
+      if (node < leafCount) {
+        nodes[node] = new HuffLeafNode(symbols[node], weights[node]);
+      } else {
+        nodes[node] = new HuffInternalNode(nodes[children[2 * node]],
+            nodes[children[2 * node + 1]], weights[node]);
+      }
+    }
+    return new HuffTree(nodes[root]);
+  }
+
+}
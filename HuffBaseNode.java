@@ -1,17 +1,17 @@
 /** Huffman tree node implementation: Base class. */
 public abstract class HuffBaseNode {
 
-  private int weight;
+  private long weight;
 
   public HuffBaseNode() {
 
   }
 
-  public HuffBaseNode(int weight) {
+  public HuffBaseNode(long weight) {
     this.weight = weight;
   }
 
-  public int weight() {
+  public long weight() {
     return weight;
   }
 
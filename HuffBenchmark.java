@@ -0,0 +1,319 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Simple throughput benchmark for the Huffman coder. Run it with
+ * {@code java HuffBenchmark [megabytes]}, it prints MB/s of original data and
+ * bytes allocated per run and per original byte for each step of the coder,
+ * for BitSequence, for JMZip and JMUnzip end to end on each corpus, for
+ * decoding blocks of one stream against blocks of four, for small messages
+ * with a codec against a shared codebook, and for
+ * block compression and decompression with one thread up to one per core.
+ * Allocation is only counted on the calling thread, so it leaves out the
+ * pool threads of the block coders.
+ *
+ * @author jeromeli
+ *
+ */
+public class HuffBenchmark {
+
+  private static final int WARMUP = 3;
+  private static final long WARMUP_NANOS = 1_000_000_000L;
+  private static final int ROUNDS = 5;
+
+  /**
+   * main method.
+   *
+   * @param args optional corpus size in megabytes.
+   * @throws IOException ioexception.
+   */
+  public static void main(String[] args) throws IOException {
+    int size = (args.length > 0 ? Integer.parseInt(args[0]) : 4) << 20;
+
+    Path file = Files.createTempFile("bench", ".dat");
+    Path zipped = Files.createTempFile("bench", ".jmz");
+    Path restored = Files.createTempFile("bench", ".dat");
+    try {
+      for (String name : new String[] {"text", "random", "skewed", "single"}) {
+        byte[] data = corpus(name, size);
+        benchCoder(name, data);
+        benchBits(name, data);
+        benchFiles(name, data, file, zipped, restored);
+        benchStreams(name, data);
+        benchMessages(name, data);
+      }
+      benchThreads(corpus("text", size * 4), zipped, restored);
+      System.out.println(CodebookCache.shared());
+    } finally {
+      Files.delete(file);
+      Files.delete(zipped);
+      Files.delete(restored);
+    }
+  }
+
+  /**
+   * benchmarks each step of the in memory coder.
+   */
+  static void benchCoder(String name, byte[] data) throws IOException {
+    int size = data.length;
+    int[] freq = BuildHuffTree.countFreq(data, 0, size);
+    HuffTree tree = BuildHuffTree.buildTree(freq);
+    BitSequence bits = BuildHuffTree.encode(tree, data);
+
+    if (!Arrays.equals(data, BuildHuffTree.decodeSeq(tree, bits))) {
+      throw new IllegalStateException("decodeSeq does not match input");
+    }
+
+    report(name, "readFreq", size, () -> BuildHuffTree.readFreq(data));
+    report(name, "countFreq", size, () -> BuildHuffTree.countFreq(data, 0, size));
+    report(name, "buildTree", size, () -> BuildHuffTree.buildTree(freq));
+    report(name, "encode", size, () -> BuildHuffTree.encode(tree, data));
+    report(name, "decodeSeqBitwise", size,
+        () -> BuildHuffTree.decodeSeqBitwise(tree, bits));
+    report(name, "decodeSeq", size, () -> BuildHuffTree.decodeSeq(tree, bits));
+  }
+
+  /**
+   * benchmarks appending to and reading back a BitSequence, a byte at a time.
+   */
+  static void benchBits(String name, byte[] data) throws IOException {
+    BitSequence bits = new BitSequence();
+    for (byte b : data) {
+      bits.appendBits(b, 8);
+    }
+
+    report(name, "BitSequence append", data.length, () -> {
+      BitSequence seq = new BitSequence();
+      for (byte b : data) {
+        seq.appendBits(b, 8);
+      }
+    });
+    report(name, "BitSequence cursor", data.length, () -> {
+      BitSequence.Cursor cursor = bits.cursor();
+      long sum = 0;
+      while (cursor.remaining() >= 8) {
+        sum += cursor.nextBits(8);
+      }
+      sink(sum);
+    });
+    report(name, "BitSequence iterate", data.length, () -> {
+      long sum = 0;
+      for (int bit : bits) {
+        sum += bit;
+      }
+      sink(sum);
+    });
+  }
+
+  /**
+   * benchmarks the command line tools end to end, file to file.
+   */
+  static void benchFiles(String name, byte[] data, Path file, Path zipped,
+      Path restored) throws IOException {
+    Files.write(file, data);
+    // JMZip does not take absolute paths.
+    Path here = Paths.get("").toAbsolutePath();
+    String[] zipArgs = {here.relativize(file).toString(), here.relativize(zipped).toString()};
+    String[] unzipArgs = {zipped.toString(), restored.toString()};
+
+    JMZip.main(zipArgs);
+    JMUnzip.main(unzipArgs);
+    if (!Arrays.equals(data, Files.readAllBytes(restored))) {
+      throw new IllegalStateException("JMUnzip does not match input");
+    }
+
+    report(name, "JMZip", data.length, () -> JMZip.main(zipArgs));
+    report(name, "JMUnzip", data.length, () -> JMUnzip.main(unzipArgs));
+  }
+
+  /**
+   * benchmarks decompressing blocks written as one stream against blocks
+   * written as four, on the calling thread.
+   */
+  static void benchStreams(String name, byte[] data) throws IOException {
+    BlockDecoder decoder = new BlockDecoder(1);
+    ByteBuffer restored = ByteBuffer.allocate(data.length);
+    for (int streams : new int[] {1, JmzFormat.MAX_STREAMS}) {
+      HuffmanCodec codec = new HuffmanCodec(BlockEncoder.DEFAULT_BLOCK_SIZE, 1,
+          BlockEncoder.DEFAULT_MAX_CODE_LENGTH, streams);
+      ByteBuffer zipped = ByteBuffer.allocate((int) codec.maxCompressedLength(data.length));
+      codec.compress(ByteBuffer.wrap(data), zipped);
+      zipped.flip();
+
+      report(name, "decompress " + streams + " stream", data.length, () -> {
+        restored.clear();
+        decoder.decompress(zipped.duplicate(), restored);
+      });
+      if (!Arrays.equals(data, restored.array())) {
+        throw new IllegalStateException(streams + " streams do not match input");
+      }
+    }
+  }
+
+  /**
+   * benchmarks zipping and unzipping small messages one at a time, each with
+   * its own code lengths through a codec and with a codebook trained on the
+   * corpus, and prints the average zipped size of each.
+   */
+  static void benchMessages(String name, byte[] data) throws IOException {
+    int size = 256;
+    int count = Math.min(data.length / size, 4096);
+    SharedCodebook shared = SharedCodebook.train(
+        Arrays.stream(BuildHuffTree.countFreq(data, 0, data.length)).asLongStream().toArray(),
+        BlockEncoder.DEFAULT_MAX_CODE_LENGTH);
+    HuffmanCodec codec = new HuffmanCodec();
+    ByteBuffer zipped = ByteBuffer.allocate((int) codec.maxCompressedLength(size));
+    ByteBuffer restored = ByteBuffer.allocate(size);
+
+    long codecBytes = 0;
+    long sharedBytes = 0;
+    for (int i = 0; i < count; i++) {
+      zipped.clear();
+      codecBytes += codec.compress(ByteBuffer.wrap(data, i * size, size), zipped);
+      byte[] message = shared.compress(data, i * size, size);
+      sharedBytes += message.length;
+      if (!Arrays.equals(Arrays.copyOfRange(data, i * size, (i + 1) * size),
+          shared.decompress(message))) {
+        throw new IllegalStateException("shared codebook does not match input");
+      }
+    }
+    System.out.printf("%-8s %d byte messages zip to %d bytes with a codec, %d shared%n",
+        name, size, codecBytes / count, sharedBytes / count);
+
+    long total = (long) count * size;
+    report(name, "codec messages", total, () -> {
+      for (int i = 0; i < count; i++) {
+        zipped.clear();
+        codec.compress(ByteBuffer.wrap(data, i * size, size), zipped);
+        zipped.flip();
+        restored.clear();
+        codec.decompress(zipped, restored);
+      }
+    });
+    report(name, "shared messages", total, () -> {
+      for (int i = 0; i < count; i++) {
+        sink(shared.decompress(shared.compress(data, i * size, size)).length);
+      }
+    });
+  }
+
+  /**
+   * benchmarks block compression and decompression from one thread up to
+   * every core.
+   */
+  static void benchThreads(byte[] text, Path zipped, Path restored) throws IOException {
+    try (OutputStream out = Files.newOutputStream(zipped)) {
+      new BlockEncoder().compress(new ByteArrayInputStream(text), out);
+    }
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+      BlockEncoder encoder = new BlockEncoder(BlockEncoder.DEFAULT_BLOCK_SIZE, threads);
+      BlockDecoder decoder = new BlockDecoder(threads);
+      report("text", "compress x" + threads, text.length, () -> encoder.compress(
+          new ByteArrayInputStream(text), OutputStream.nullOutputStream()));
+      report("text", "decompress x" + threads, text.length,
+          () -> decoder.decompress(zipped, restored));
+      if (threads == cores) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * keeps a result alive so the jit cannot drop the loop that made it.
+   */
+  static void sink(long value) {
+    if (value == 42) {
+      System.out.print("");
+    }
+  }
+
+  /**
+   * builds one of the test corpora.
+   *
+   * @param name corpus name.
+   * @param size number of bytes.
+   * @return the corpus.
+   */
+  static byte[] corpus(String name, int size) {
+    Random random = new Random(42);
+    byte[] data = new byte[size];
+    switch (name) {
+      case "text":
+        byte[] words = ("Mary had a little lamb.  It's fleece was white as snow.\n"
+            + "And everywhere that Mary went, the lamb was sure to go.\n").getBytes();
+        for (int i = 0; i < size; i++) {
+          data[i] = words[(i + random.nextInt(4)) % words.length];
+        }
+        break;
+      case "random":
+        random.nextBytes(data);
+        break;
+      case "skewed":
+        for (int i = 0; i < size; i++) {
+          data[i] = (byte) Math.min(255, (int) -Math.log(random.nextDouble()) * 4);
+        }
+        break;
+      case "single":
+        Arrays.fill(data, (byte) 'a');
+        break;
+      default:
+        throw new IllegalArgumentException(name);
+    }
+    return data;
+  }
+
+  /**
+   * times an operation and prints its throughput. Warms up for at least a
+   * second so long decode loops are measured after the JIT has compiled them.
+   *
+   * @param corpus corpus name.
+   * @param op operation name.
+   * @param size number of original bytes processed by each run.
+   * @param task the operation.
+   */
+  static void report(String corpus, String op, long size, Task task)
+      throws IOException {
+    long warm = System.nanoTime();
+    for (int i = 0; i < WARMUP || System.nanoTime() - warm < WARMUP_NANOS; i++) {
+      task.run();
+    }
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      task.run();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    allocated = allocatedBytes() - allocated;
+    System.out.printf("%-8s %-20s %10.1f MB/s %14d B/op %8.3f B/byte%n", corpus, op,
+        size * ROUNDS / seconds / (1 << 20), allocated / ROUNDS,
+        (double) allocated / (size * ROUNDS));
+  }
+
+  /**
+   * returns the number of bytes allocated so far by the calling thread, or 0
+   * if the jvm cannot tell.
+   */
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+    }
+    return 0;
+  }
+
+  /** One benchmarked operation. */
+  interface Task {
+    void run() throws IOException;
+  }
+
+}
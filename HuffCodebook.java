@@ -0,0 +1,264 @@
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Canonical Huffman code for the 256 byte values. A canonical code is fully
+ * described by the code length of each byte: codes are handed out in order
+ * of length and then byte value, each one the previous code plus one. So a
+ * zipped file only has to store the lengths, and unzipping does not depend on
+ * how ties were broken when the tree was built.
+ *
+ * <p>A codebook is immutable once built, the tree and decoding table made
+ * from it are built on first use and then kept.
+ *
+ * @author jeromeli
+ *
+ */
+public class HuffCodebook {
+
+  public static final int MAX_CODE_LENGTH = 63;
+
+  /**
+   * Codes up to this long are decoded with a single table lookup, longer
+   * ones fall back to walking the tree past HuffDecodeTable.DEFAULT_BITS.
+   */
+  public static final int FLAT_TABLE_BITS = 12;
+
+  private final int[] lengths;
+  private final long[] codes;
+  private final int[] symbols;
+  private HuffArrayTree tree;
+  private HuffDecodeTable decodeTable;
+
+  /**
+   * Private constructor, use one of the factory methods.
+   */
+  private HuffCodebook(int[] lengths) {
+    this.lengths = lengths;
+    codes = new long[256];
+
+    int count = 0;
+    for (int length : lengths) {
+      if (length < 0 || length > MAX_CODE_LENGTH) {
+        throw new IllegalArgumentException("bad code length " + length);
+      }
+      if (length > 0) {
+        count++;
+      }
+    }
+
+    symbols = new int[count];
+    int next = 0;
+    for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+      for (int b = 0; b < 256; b++) {
+        if (lengths[b] == length) {
+          symbols[next++] = b;
+        }
+      }
+    }
+
+    if (count < 2) {
+      return;
+    }
+
+    long code = 0;
+    for (int i = 0; i < count; i++) {
+      int length = lengths[symbols[i]];
+      if (i > 0) {
+        code = (code + 1) << (length - lengths[symbols[i - 1]]);
+      }
+      if (code >>> length != 0) {
+        throw new IllegalArgumentException("code lengths are not a prefix code");
+      }
+      codes[symbols[i]] = Long.reverse(code) >>> (64 - length);
+    }
+    // The last code of a complete code is all 1's.
+    if (code != (1L << lengths[symbols[count - 1]]) - 1) {
+      throw new IllegalArgumentException("code lengths are not a complete code");
+    }
+  }
+
+  /**
+   * Build the codebook for the given frequencies. The same frequencies always
+   * give the same codebook.
+   *
+   * @param freq frequency of each byte.
+   * @return the codebook.
+   */
+  public static HuffCodebook fromFrequencies(Map<Byte, Integer> freq) {
+    int[] counts = new int[256];
+    for (Map.Entry<Byte, Integer> entry : freq.entrySet()) {
+      counts[entry.getKey() & 0xFF] = entry.getValue();
+    }
+    return fromFrequencies(counts);
+  }
+
+  /**
+   * Build the codebook for the given frequencies. The same frequencies always
+   * give the same codebook.
+   *
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @return the codebook.
+   */
+  public static HuffCodebook fromFrequencies(int[] freq) {
+    // int counts add up to less than 2^40, which never needs 63 bits.
+    return fromFrequencies(freq, MAX_CODE_LENGTH);
+  }
+
+  /**
+   * Build the codebook for the given frequencies, which may add up to
+   * anything that fits in a long. Codes are limited to MAX_CODE_LENGTH, which
+   * only the most lopsided counts past 2^40 or so would need more than.
+   *
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @return the codebook.
+   */
+  public static HuffCodebook fromFrequencies(long[] freq) {
+    return fromFrequencies(freq, MAX_CODE_LENGTH);
+  }
+
+  /**
+   * Build the best codebook for the given frequencies whose codes are no
+   * longer than maxLength, see BuildHuffTree.codeLengths(int[], int). The
+   * same frequencies always give the same codebook.
+   *
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @param maxLength longest code allowed, at most MAX_CODE_LENGTH.
+   * @return the codebook.
+   * @throws IllegalArgumentException if maxLength is too short for the number
+   *         of bytes used.
+   */
+  public static HuffCodebook fromFrequencies(int[] freq, int maxLength) {
+    long[] wide = new long[256];
+    for (int b = 0; b < 256; b++) {
+      wide[b] = freq[b];
+    }
+    return fromFrequencies(wide, maxLength);
+  }
+
+  /**
+   * Build the best codebook for the given frequencies whose codes are no
+   * longer than maxLength, see fromFrequencies(int[], int).
+   *
+   * @param freq count of each unsigned byte value, 0 for bytes not used.
+   * @param maxLength longest code allowed, at most MAX_CODE_LENGTH.
+   * @return the codebook.
+   * @throws IllegalArgumentException if maxLength is too short for the number
+   *         of bytes used.
+   */
+  public static HuffCodebook fromFrequencies(long[] freq, int maxLength) {
+    if (maxLength > MAX_CODE_LENGTH) {
+      throw new IllegalArgumentException("codes can be at most " + MAX_CODE_LENGTH + " bits");
+    }
+    return new HuffCodebook(BuildHuffTree.codeLengths(freq, maxLength));
+  }
+
+  /**
+   * Build the canonical codebook with the same code lengths as a tree.
+   *
+   * @param tree the tree, or null for an empty file.
+   * @return the codebook.
+   */
+  public static HuffCodebook fromTree(HuffTree tree) {
+    return new HuffCodebook(BuildHuffTree.codeLengths(tree));
+  }
+
+  /**
+   * Build the codebook for the given code lengths.
+   *
+   * @param lengths code length of each unsigned byte value, 0 if unused.
+   * @return the codebook.
+   * @throws IllegalArgumentException if the lengths do not form a complete
+   *         prefix code.
+   */
+  public static HuffCodebook fromLengths(int[] lengths) {
+    if (lengths.length != 256) {
+      throw new IllegalArgumentException("need 256 code lengths");
+    }
+    return new HuffCodebook(lengths.clone());
+  }
+
+  /**
+   * Return the number of bytes that have a code.
+   */
+  public int symbolCount() {
+    return symbols.length;
+  }
+
+  /**
+   * Return the code length of a byte, 0 if it has no code. A codebook with a
+   * single byte gives it length 1, but no bits are ever written for it.
+   *
+   * @param symbol unsigned byte value.
+   */
+  public int length(int symbol) {
+    return lengths[symbol];
+  }
+
+  /**
+   * Return the code of a byte with its first bit in the lowest position, ready
+   * to be or'ed into the bits BuildHuffTree.encode gathers in a long.
+   *
+   * @param symbol unsigned byte value.
+   */
+  public long code(int symbol) {
+    return codes[symbol];
+  }
+
+  /**
+   * Return a copy of the code lengths indexed by unsigned byte value.
+   */
+  public int[] lengths() {
+    return lengths.clone();
+  }
+
+  /**
+   * Return a copy of the codes indexed by unsigned byte value, each with its
+   * first bit in the lowest position.
+   */
+  public long[] codes() {
+    return codes.clone();
+  }
+
+  /**
+   * Return the tree of this code, or null if it has no bytes.
+   */
+  public synchronized HuffArrayTree tree() {
+    if (tree == null) {
+      tree = HuffArrayTree.fromCodes(codes, lengths);
+    }
+    return tree;
+  }
+
+  /**
+   * Return the length of the longest code, 0 if there are none.
+   */
+  public int maxLength() {
+    return symbols.length == 0 ? 0 : lengths[symbols[symbols.length - 1]];
+  }
+
+  /**
+   * Return the table for decoding this code. The code must have at least two
+   * bytes.
+   */
+  public synchronized HuffDecodeTable decodeTable() {
+    if (decodeTable == null) {
+      int longest = maxLength();
+      decodeTable = new HuffDecodeTable(tree(),
+          longest <= FLAT_TABLE_BITS ? longest : HuffDecodeTable.DEFAULT_BITS);
+    }
+    return decodeTable;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof HuffCodebook
+        && Arrays.equals(lengths, ((HuffCodebook) other).lengths);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(lengths);
+  }
+
+}
@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Lookup table for decoding a Huffman encoded bit sequence several bits at a
+ * time. The table is indexed by the next tableBits bits of the sequence. Each
+ * entry holds either the symbol whose code is a prefix of those bits along
+ * with the length of that code, or, for codes longer than tableBits, the
+ * subtree reached after consuming all tableBits bits. Decoding then finishes
+ * with a per-bit loop down that subtree in a HuffArrayTree.
+ *
+ * @author jeromeli
+ *
+ */
+public class HuffDecodeTable {
+
+  public static final int DEFAULT_BITS = 10;
+
+  /** Reads a long from a byte array, lowest byte first. */
+  private static final VarHandle LONG =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final int tableBits;
+  private final byte[] symbols;
+  private final byte[] lengths;
+  private final int[] subtrees;
+  private final HuffArrayTree tree;
+  private boolean flat = true;
+
+  /**
+   * Build a table with the default width for the provided tree.
+   *
+   * @param tree tree used to encode the sequence.
+   */
+  public HuffDecodeTable(HuffTree tree) {
+    this(tree, DEFAULT_BITS);
+  }
+
+  /**
+   * Build a table for the provided tree.
+   *
+   * @param tree tree used to encode the sequence.
+   * @param tableBits number of bits consumed by a single lookup, 1 to 16.
+   */
+  public HuffDecodeTable(HuffTree tree, int tableBits) {
+    this(HuffArrayTree.fromTree(tree), tableBits);
+  }
+
+  /**
+   * Build a table for the provided tree.
+   *
+   * @param tree tree used to encode the sequence.
+   * @param tableBits number of bits consumed by a single lookup, 1 to 16.
+   */
+  public HuffDecodeTable(HuffArrayTree tree, int tableBits) {
+    if (tableBits < 1 || tableBits > 16) {
+      throw new IllegalArgumentException("table bits must be 1 to 16");
+    }
+    this.tableBits = tableBits;
+    this.tree = tree;
+    symbols = new byte[1 << tableBits];
+    lengths = new byte[1 << tableBits];
+    subtrees = new int[1 << tableBits];
+    fill(tree.root(), 0, 0);
+  }
+
+  /**
+   * helper method that fills the entries for every code below node.
+   *
+   * @param node current node.
+   * @param code bits leading to node, first bit in the lowest position.
+   * @param depth number of bits leading to node.
+   */
+  private void fill(int node, int code, int depth) {
+    if (tree.isLeaf(node)) {
+      byte value = tree.symbol(node);
+      for (int i = code; i < symbols.length; i += 1 << depth) {
+        symbols[i] = value;
+        lengths[i] = (byte) depth;
+      }
+      return;
+    }
+    if (depth == tableBits) {
+      flat = false;
+      subtrees[code] = node;
+      return;
+    }
+
+    fill(tree.child(node, 0), code, depth + 1);
+    fill(tree.child(node, 1), code | 1 << depth, depth + 1);
+  }
+
+  /**
+   * decodes the whole sequence. The tree must have at least two leaves.
+   *
+   * @param onesNZeros bit sequence to decode.
+   * @param expected number of bytes the sequence is expected to hold, the
+   *        result is sized for that many up front.
+   * @return the decoded bytes.
+   */
+  public byte[] decode(BitSequence onesNZeros, int expected) {
+    int numBits = onesNZeros.length();
+    byte[] out = new byte[Math.max(expected, 16)];
+    int count = 0;
+    int pos = 0;
+
+    while (pos < numBits) {
+      if (count == out.length) {
+        out = Arrays.copyOf(out, 2 * count);
+      }
+      int index = onesNZeros.peekBits(pos, tableBits);
+      int length = lengths[index];
+      if (length != 0) {
+        out[count++] = symbols[index];
+        pos += length;
+        continue;
+      }
+
+      // Long code, finish it one bit at a time. Bits past the end read as 0.
+      int node = subtrees[index];
+      pos += tableBits;
+      while (!tree.isLeaf(node)) {
+        node = tree.child(node, onesNZeros.peekBits(pos++, 1));
+      }
+      out[count++] = tree.symbol(node);
+    }
+    return count == out.length ? out : Arrays.copyOf(out, count);
+  }
+
+  /**
+   * decodes len bytes from the stream into part of an array. The tree must
+   * have at least two leaves.
+   *
+   * @param in bit stream to decode.
+   * @param out array the decoded bytes are written to.
+   * @param off index of the first decoded byte in out.
+   * @param len number of bytes to decode.
+   * @throws IOException if in fails or ends too early.
+   */
+  public void decode(BitInputStream in, byte[] out, int off, int len)
+      throws IOException {
+    for (int pos = off; pos < off + len; pos++) {
+      out[pos] = next(in);
+    }
+  }
+
+  /**
+   * decodes count bytes from the stream and drops them, to get to a later
+   * byte without storing the ones before it. The tree must have at least two
+   * leaves.
+   *
+   * @param in bit stream to decode.
+   * @param count number of bytes to skip.
+   * @throws IOException if in fails or ends too early.
+   */
+  public void skip(BitInputStream in, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      next(in);
+    }
+  }
+
+  /**
+   * Decode exactly len symbols from a bit stream and put them in out,
+   * starting at its position.
+   *
+   * @param in stream of encoded bits.
+   * @param out buffer with room for len bytes.
+   * @param len number of symbols to decode.
+   * @throws IOException if the stream fails or ends first.
+   */
+  public void decode(BitInputStream in, ByteBuffer out, int len) throws IOException {
+    for (int i = 0; i < len; i++) {
+      out.put(next(in));
+    }
+  }
+
+  /**
+   * Decode exactly len symbols from four streams and put them in out,
+   * starting at its position, see decode(ByteBuffer[], byte[], int, int). A
+   * buffer without an array is decoded through a copy.
+   *
+   * @param in the bytes of the four streams, in order.
+   * @param out buffer with room for len bytes.
+   * @param len number of symbols to decode.
+   * @throws IOException if a stream ends first.
+   */
+  public void decode(ByteBuffer[] in, ByteBuffer out, int len) throws IOException {
+    if (out.hasArray()) {
+      decode(in, out.array(), out.arrayOffset() + out.position(), len);
+      out.position(out.position() + len);
+    } else {
+      byte[] decoded = new byte[len];
+      decode(in, decoded, 0, len);
+      out.put(decoded);
+    }
+  }
+
+  /**
+   * decodes len bytes from four streams into part of an array. Each stream
+   * holds the next segment of JmzFormat.segmentLength bytes, and the bytes of
+   * each are read from the position to the limit of its buffer. When every
+   * code fits the table the four streams are decoded in the same loop, each
+   * with its own 64 bit window that is topped up 8 bytes at a time, so the
+   * lookups of one never wait on the bit position of another and the
+   * processor can run them side by side. The loop only touches arrays, so
+   * it is compiled the same way whatever kind of buffer the streams came in;
+   * a buffer without an array is copied first. The ends of the streams, and
+   * tables with longer codes, go through BitInputStream. The tree must have
+   * at least two leaves.
+   *
+   * @param in the bytes of the four streams, in order.
+   * @param out array the decoded bytes are written to.
+   * @param off index of the first decoded byte in out.
+   * @param len number of bytes to decode.
+   * @throws IOException if a stream ends too early.
+   */
+  public void decode(ByteBuffer[] in, byte[] out, int off, int len) throws IOException {
+    int segment = JmzFormat.segmentLength(len, 4);
+    int last = Math.max(len - 3 * segment, 0);
+    ByteBuffer in0 = array(in[0]);
+    ByteBuffer in1 = array(in[1]);
+    ByteBuffer in2 = array(in[2]);
+    ByteBuffer in3 = array(in[3]);
+    byte[] src0 = in0.array();
+    byte[] src1 = in1.array();
+    byte[] src2 = in2.array();
+    byte[] src3 = in3.array();
+    int pos0 = in0.arrayOffset() + in0.position();
+    int pos1 = in1.arrayOffset() + in1.position();
+    int pos2 = in2.arrayOffset() + in2.position();
+    int pos3 = in3.arrayOffset() + in3.position();
+    long bits0 = 0;
+    long bits1 = 0;
+    long bits2 = 0;
+    long bits3 = 0;
+    int count0 = 0;
+    int count1 = 0;
+    int count2 = 0;
+    int count3 = 0;
+    int done = 0;
+
+    if (flat && tableBits <= 14) {
+      // A long can be read up to 8 bytes before the limit.
+      int end0 = in0.arrayOffset() + in0.limit() - 8;
+      int end1 = in1.arrayOffset() + in1.limit() - 8;
+      int end2 = in2.arrayOffset() + in2.limit() - 8;
+      int end3 = in3.arrayOffset() + in3.limit() - 8;
+      int mask = (1 << tableBits) - 1;
+      byte[] symbols = this.symbols;
+      byte[] lengths = this.lengths;
+      int off1 = off + segment;
+      int off2 = off1 + segment;
+      int off3 = off2 + segment;
+      while (done + 4 <= last && pos0 <= end0 && pos1 <= end1 && pos2 <= end2
+          && pos3 <= end3) {
+        // Top up to at least 56 bits, 4 codes of up to 14 bits each. Bits
+        // past count are the same ones the next read puts there.
+        bits0 |= (long) LONG.get(src0, pos0) << count0;
+        pos0 += (63 - count0) >>> 3;
+        count0 |= 56;
+        bits1 |= (long) LONG.get(src1, pos1) << count1;
+        pos1 += (63 - count1) >>> 3;
+        count1 |= 56;
+        bits2 |= (long) LONG.get(src2, pos2) << count2;
+        pos2 += (63 - count2) >>> 3;
+        count2 |= 56;
+        bits3 |= (long) LONG.get(src3, pos3) << count3;
+        pos3 += (63 - count3) >>> 3;
+        count3 |= 56;
+
+        // Four codes from each stream, written out so there is no inner loop.
+        int index0;
+        int index1;
+        int index2;
+        int index3;
+        index0 = (int) bits0 & mask;
+        index1 = (int) bits1 & mask;
+        index2 = (int) bits2 & mask;
+        index3 = (int) bits3 & mask;
+        out[off + done] = symbols[index0];
+        out[off1 + done] = symbols[index1];
+        out[off2 + done] = symbols[index2];
+        out[off3 + done] = symbols[index3];
+        bits0 >>>= lengths[index0];
+        bits1 >>>= lengths[index1];
+        bits2 >>>= lengths[index2];
+        bits3 >>>= lengths[index3];
+        count0 -= lengths[index0];
+        count1 -= lengths[index1];
+        count2 -= lengths[index2];
+        count3 -= lengths[index3];
+        index0 = (int) bits0 & mask;
+        index1 = (int) bits1 & mask;
+        index2 = (int) bits2 & mask;
+        index3 = (int) bits3 & mask;
+        out[off + done + 1] = symbols[index0];
+        out[off1 + done + 1] = symbols[index1];
+        out[off2 + done + 1] = symbols[index2];
+        out[off3 + done + 1] = symbols[index3];
+        bits0 >>>= lengths[index0];
+        bits1 >>>= lengths[index1];
+        bits2 >>>= lengths[index2];
+        bits3 >>>= lengths[index3];
+        count0 -= lengths[index0];
+        count1 -= lengths[index1];
+        count2 -= lengths[index2];
+        count3 -= lengths[index3];
+        index0 = (int) bits0 & mask;
+        index1 = (int) bits1 & mask;
+        index2 = (int) bits2 & mask;
+        index3 = (int) bits3 & mask;
+        out[off + done + 2] = symbols[index0];
+        out[off1 + done + 2] = symbols[index1];
+        out[off2 + done + 2] = symbols[index2];
+        out[off3 + done + 2] = symbols[index3];
+        bits0 >>>= lengths[index0];
+        bits1 >>>= lengths[index1];
+        bits2 >>>= lengths[index2];
+        bits3 >>>= lengths[index3];
+        count0 -= lengths[index0];
+        count1 -= lengths[index1];
+        count2 -= lengths[index2];
+        count3 -= lengths[index3];
+        index0 = (int) bits0 & mask;
+        index1 = (int) bits1 & mask;
+        index2 = (int) bits2 & mask;
+        index3 = (int) bits3 & mask;
+        out[off + done + 3] = symbols[index0];
+        out[off1 + done + 3] = symbols[index1];
+        out[off2 + done + 3] = symbols[index2];
+        out[off3 + done + 3] = symbols[index3];
+        bits0 >>>= lengths[index0];
+        bits1 >>>= lengths[index1];
+        bits2 >>>= lengths[index2];
+        bits3 >>>= lengths[index3];
+        count0 -= lengths[index0];
+        count1 -= lengths[index1];
+        count2 -= lengths[index2];
+        count3 -= lengths[index3];
+        done += 4;
+      }
+    }
+
+    finish(in0, pos0, count0, out, off, Math.min(segment, len), done);
+    finish(in1, pos1, count1, out, off + segment, Math.min(segment, len - segment), done);
+    finish(in2, pos2, count2, out, off + 2 * segment, Math.min(segment, len - 2 * segment),
+        done);
+    finish(in3, pos3, count3, out, off + 3 * segment, last, done);
+  }
+
+  /**
+   * helper method that returns buf if it has an array, or a copy of its bytes
+   * from the position to the limit that has one.
+   */
+  private static ByteBuffer array(ByteBuffer buf) {
+    if (buf.hasArray()) {
+      return buf;
+    }
+    byte[] copy = new byte[buf.remaining()];
+    buf.duplicate().get(copy);
+    return ByteBuffer.wrap(copy);
+  }
+
+  /**
+   * helper method that decodes the rest of a segment one symbol at a time,
+   * from the first bit the window has not consumed yet.
+   *
+   * @param in bytes of the stream, with an array.
+   * @param pos index in the array of the first byte not in the window.
+   * @param count number of bits left in the window.
+   * @param out array the decoded bytes are written to.
+   * @param start index of the segment in out.
+   * @param length length of the segment, 0 or less if it is empty.
+   * @param done number of bytes of the segment decoded already.
+   */
+  private void finish(ByteBuffer in, int pos, int count, byte[] out, int start, int length,
+      int done) throws IOException {
+    if (done >= length) {
+      return;
+    }
+    long bit = 8L * (pos - in.arrayOffset()) - count;
+    ByteBuffer rest = in.duplicate();
+    rest.position((int) (bit >>> 3));
+    BitInputStream bits = new BitInputStream(rest);
+    bits.skipBits((int) bit & 7);
+    for (int i = done; i < length; i++) {
+      out[start + i] = next(bits);
+    }
+  }
+
+  /**
+   * Private helper method that decodes and consumes one symbol.
+   */
+  private byte next(BitInputStream in) throws IOException {
+    int index = in.peekBits(tableBits);
+    int length = lengths[index];
+    if (length != 0) {
+      in.skipBits(length);
+      return symbols[index];
+    }
+
+    // Long code, finish it one bit at a time.
+    int node = subtrees[index];
+    in.skipBits(tableBits);
+    while (!tree.isLeaf(node)) {
+      node = tree.child(node, in.readBit());
+    }
+    return tree.symbol(node);
+  }
+
+
+}
@@ -4,7 +4,7 @@ public class HuffInternalNode extends HuffBaseNode {
   private HuffBaseNode right;
 
   /** Constructor. */
-  public HuffInternalNode(HuffBaseNode l, HuffBaseNode r, int wt) {
+  public HuffInternalNode(HuffBaseNode l, HuffBaseNode r, long wt) {
     super(wt);
     left = l;
     right = r;
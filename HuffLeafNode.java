@@ -3,7 +3,7 @@ public class HuffLeafNode extends HuffBaseNode {
   private byte element; // Element for this node
 
   /** Constructor. */
-  public HuffLeafNode(byte el, int wt) {
+  public HuffLeafNode(byte el, long wt) {
     super(wt);
     element = el;
 
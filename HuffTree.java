@@ -1,28 +1,35 @@
-/** A Huffman coding tree. */
+/**
+ * A Huffman coding tree. Weights are longs, so counts past 2^31 do not wrap
+ * around.
+ */
 class HuffTree implements Comparable<HuffTree> {
   private HuffBaseNode root;
 
   /** Constructors. */
-  HuffTree(byte el, int wt) {
+  HuffTree(byte el, long wt) {
     root = new HuffLeafNode(el, wt);
   }
 
-  HuffTree(HuffBaseNode l, HuffBaseNode r, int wt) {
+  HuffTree(HuffBaseNode l, HuffBaseNode r, long wt) {
     root = new HuffInternalNode(l, r, wt);
   }
 
+  HuffTree(HuffBaseNode root) {
+    this.root = root;
+  }
+
   HuffBaseNode root() {
     return root;
   }
 
-  int weight() {
+  long weight() {
     return root.weight();
   }
 
 
   @Override
   public int compareTo(HuffTree o) {
-    HuffTree that = (HuffTree) o;
+    HuffTree that = o;
     if (root.weight() < that.weight()) {
       return -1;
     } else if (root.weight() == that.weight()) {
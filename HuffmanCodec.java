@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses and decompresses data in the jmz format, see JmzFormat. A codec
+ * keeps no state between calls, everything a call needs is local to it, so
+ * one instance can be shared by any number of threads. By default a codec
+ * works on the calling thread only, which suits a server that already runs
+ * many requests at once; give it more threads to spread one large call over
+ * several cores.
+ *
+ * @author jeromeli
+ *
+ */
+public final class HuffmanCodec {
+
+  private final int blockSize;
+  private final BlockEncoder encoder;
+  private final BlockDecoder decoder;
+
+  /**
+   * Create a codec with the default block size that works on the calling
+   * thread.
+   */
+  public HuffmanCodec() {
+    this(BlockEncoder.DEFAULT_BLOCK_SIZE, 1);
+  }
+
+  /**
+   * Create a codec.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of blocks coded at the same time by one call.
+   */
+  public HuffmanCodec(int blockSize, int parallelism) {
+    this(blockSize, parallelism, BlockEncoder.DEFAULT_MAX_CODE_LENGTH);
+  }
+
+  /**
+   * Create a codec.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of blocks coded at the same time by one call.
+   * @param maxCodeLength longest code compress writes, 8 to
+   *        HuffCodebook.MAX_CODE_LENGTH. Any length can be decompressed.
+   */
+  public HuffmanCodec(int blockSize, int parallelism, int maxCodeLength) {
+    this(blockSize, parallelism, maxCodeLength, 1);
+  }
+
+  /**
+   * Create a codec.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of blocks coded at the same time by one call.
+   * @param maxCodeLength longest code compress writes, 8 to
+   *        HuffCodebook.MAX_CODE_LENGTH. Any length can be decompressed.
+   * @param streams 1, or JmzFormat.MAX_STREAMS to split each block into
+   *        streams that decompress side by side. Either can be decompressed.
+   */
+  public HuffmanCodec(int blockSize, int parallelism, int maxCodeLength, int streams) {
+    this.blockSize = blockSize;
+    this.encoder = new BlockEncoder(blockSize, parallelism, maxCodeLength, streams);
+    this.decoder = new BlockDecoder(parallelism);
+  }
+
+  /**
+   * compresses everything in in and writes the zipped data to out. Neither
+   * stream is closed.
+   *
+   * @param in stream to compress.
+   * @param out stream the zipped data is written to.
+   * @return length of the original data.
+   * @throws IOException if either stream fails.
+   */
+  public long compress(InputStream in, OutputStream out) throws IOException {
+    return encoder.compress(in, out);
+  }
+
+  /**
+   * compresses in one pass as data arrives, flushing out after every block,
+   * for pipes and sockets that stay open, see BlockEncoder.compressLive.
+   * Neither stream is closed.
+   *
+   * @param in stream to compress.
+   * @param out stream the zipped data is written to.
+   * @return length of the original data.
+   * @throws IOException if either stream fails.
+   */
+  public long compressLive(InputStream in, OutputStream out) throws IOException {
+    return encoder.compressLive(in, out);
+  }
+
+  /**
+   * compresses the bytes from the position to the limit of in and puts the
+   * zipped data in out. The position of in is moved to its limit and the
+   * position of out past the zipped data. out never needs more than
+   * maxCompressedLength(in.remaining()) bytes.
+   *
+   * @param in bytes to compress.
+   * @param out buffer the zipped data is put in.
+   * @return length of the zipped data.
+   * @throws BufferOverflowException if out is too small.
+   */
+  public int compress(ByteBuffer in, ByteBuffer out) {
+    int start = out.position();
+    try {
+      encoder.compress(in, JmzFormat.asOutputStream(out));
+    } catch (IOException ioe) {
+      // Only the output can fail, and putting in a buffer does not.
+      throw new IllegalStateException(ioe);
+    }
+    return out.position() - start;
+  }
+
+  /**
+   * decompresses zipped data from in and writes the original data to out.
+   * Neither stream is closed.
+   *
+   * @param in stream positioned at the start of the zipped data.
+   * @param out stream the original data is written to.
+   * @return length of the original data.
+   * @throws IOException if either stream fails or the data is damaged.
+   */
+  public long decompress(InputStream in, OutputStream out) throws IOException {
+    return decoder.decompress(in, out);
+  }
+
+  /**
+   * decompresses zipped data from the position of in and puts the original
+   * data in out. The position of in is moved past the zipped data and the
+   * position of out past the original data.
+   *
+   * @param in buffer positioned at the start of the zipped data.
+   * @param out buffer the original data is put in.
+   * @return length of the original data.
+   * @throws IOException if the zipped data is damaged.
+   * @throws BufferOverflowException if out is too small.
+   */
+  public long decompress(ByteBuffer in, ByteBuffer out) throws IOException {
+    return decoder.decompress(in, out);
+  }
+
+  /**
+   * returns the most bytes compress can produce for length original bytes. A
+   * block that coding would not make smaller is stored as it is, so only the
+   * headers and the index add to the original length.
+   *
+   * @param length number of original bytes.
+   * @return upper bound on the zipped length.
+   */
+  public long maxCompressedLength(long length) {
+    long blocks = (length + blockSize - 1) / blockSize;
+    return JmzFormat.HEADER_SIZE + length + blocks * JmzFormat.MAX_BLOCK_OVERHEAD
+        + JmzFormat.END_SIZE;
+  }
+
+}
@@ -1,72 +1,228 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
- * unzip class.
+ * unzip class. Blocks are decoded in parallel and each one is written
+ * straight into its place in the output file, see BlockDecoder. Only a few
+ * blocks are in memory at a time, no matter how big the file is.
+ *
+ * <p>Usage:
+ * {@code JMUnzip <zipped file> <file> [-t threads] [-n] [-e entry] [-r offset length]}
+ * or {@code JMUnzip <archive> -l}
+ * Either name can be "-" for stdin or stdout, which are unzipped one block
+ * after another as the blocks arrive. Each block is checked against its
+ * checksum as it is decoded; -n skips that for a little more speed. An
+ * archive written by JMZip from a directory is unzipped into the directory
+ * file, or with -e just the named entry into file, and -l lists its entries.
+ * -r unzips only length bytes from offset on, decoding just the blocks they
+ * are in, see JmzReader. Files written by the old JMZip as a serialized
+ * HuffmanSave can still be unzipped.
+ *
  * @author jeromeli
- * 
+ *
  */
 public class JMUnzip {
 
+  /** Second argument that lists the entries of an archive. */
+  private static final String LIST = "-l";
+
   /**
    * main method.
    * @param args command line args.
    */
   public static void main(String[] args) {
 
-    HuffmanSave huffSave;
-    FileInputStream fileIn;
-    ObjectInputStream objIn;
-    HuffTree tree;
-    FileOutputStream fileOut = null;
-    byte[] arr = null;
-
     // Early exit
     if (args.length < 2) {
       System.err.println("You must enter a file name.");
       return;
     }
 
-    if (!args[0].endsWith(".jmz")) {
+    if (!args[0].endsWith(".jmz") && !args[0].equals(JMZip.STANDARD_STREAM)) {
       System.err.print("file to unzip is not jmz file.");
       return;
     }
 
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean verify = true;
+    String entry = null;
+    long[] range = null;
+    try {
+      for (int i = 2; i < args.length; i++) {
+        if (args[i].equals("-n")) {
+          verify = false;
+        } else if (args[i].equals("-t")) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-e")) {
+          entry = args[++i];
+        } else if (args[i].equals("-r")) {
+          range = new long[] {Long.parseLong(args[++i]), Long.parseLong(args[++i])};
+          if (range[0] < 0 || range[1] < 0) {
+            throw new IllegalArgumentException(args[i]);
+          }
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+    } catch (RuntimeException re) {
+      System.err.println("Usage: JMUnzip <zipped file> <file> [-t threads] [-n] [-e entry]"
+          + " [-r offset length]");
+      return;
+    }
+
+    BlockDecoder decoder;
+    try {
+      decoder = new BlockDecoder(threads, verify);
+    } catch (IllegalArgumentException iae) {
+      System.err.println(iae.getMessage());
+      return;
+    }
 
+    boolean streams = args[0].equals(JMZip.STANDARD_STREAM)
+        || args[1].equals(JMZip.STANDARD_STREAM);
     try {
-      fileIn = new FileInputStream(args[0]);
-      objIn = new ObjectInputStream(fileIn);
-      huffSave = (HuffmanSave) objIn.readObject();
-      objIn.close();
-      fileIn.close();
+      boolean legacy;
+      boolean archive;
+      try (InputStream in = args[0].equals(JMZip.STANDARD_STREAM)
+          ? new BufferedInputStream(System.in)
+          : new BufferedInputStream(new FileInputStream(args[0]))) {
+        legacy = JmzFormat.isLegacy(in);
+        archive = JmzArchive.isArchive(in);
+        if ((archive || range != null) && args[0].equals(JMZip.STANDARD_STREAM)) {
+          throw new IOException("an archive or a range must be unzipped from a file");
+        }
+        if (!archive && (args[1].equals(LIST) || entry != null)) {
+          throw new IOException("not an archive");
+        }
+        if (!archive && range == null && (legacy || streams)) {
+          try (OutputStream fileOut = JMZip.openOutput(args[1])) {
+            if (legacy) {
+              unzipLegacy(in, fileOut);
+            } else {
+              // One block after another, as it arrives.
+              decoder.decompress(in, fileOut);
+            }
+          }
+        }
+      }
 
-      BuildHuffTree.setSeqMap(huffSave.getFrequencies());
-      tree = BuildHuffTree.buildTree();
-      arr = BuildHuffTree.decodeSeq(tree, huffSave.getEncoding());
+      if (range != null) {
+        unzipRange(args[0], args[1], entry, range[0], range[1]);
+      } else if (archive) {
+        unzipArchive(args[0], args[1], entry, decoder);
+      } else if (!legacy && !streams) {
+        decoder.decompress(Paths.get(args[0]), Paths.get(args[1]));
+      }
 
+    } catch (FileNotFoundException | NoSuchFileException fnfe) {
+      System.err.print("file not found: " + fnfe.getMessage());
     } catch (IOException ioe) {
-      System.err.print("");
-      return;
-    } catch (ClassNotFoundException i) {
-      System.err.print("");
+      System.err.print(args[0] + " could not be unzipped: " + ioe.getMessage());
     }
 
-    try {
-      fileOut = new FileOutputStream(args[1]);
-    } catch (FileNotFoundException fnfe) {
-      fnfe.printStackTrace();
+  }
+
+  /**
+   * lists, unzips every entry or unzips one entry of an archive.
+   * @param archive name of the archive.
+   * @param out directory to unzip every entry into, file or "-" to unzip one
+   *        entry to, or "-l" to list the entries.
+   * @param entry name of the entry to unzip, null for all of them.
+   * @param decoder decoder to unzip with.
+   */
+  private static void unzipArchive(String archive, String out, String entry,
+      BlockDecoder decoder) throws IOException {
+    if (out.equals(LIST)) {
+      try (FileChannel channel = FileChannel.open(Paths.get(archive),
+          StandardOpenOption.READ)) {
+        for (JmzArchive.Entry e : JmzArchive.readDirectory(channel)) {
+          System.out.println(e.getLength() + "\t" + e.getZippedLength() + "\t" + e.getName());
+        }
+      }
+    } else if (entry == null) {
+      JmzArchive.extractAll(Paths.get(archive), Paths.get(out), decoder);
+    } else {
+      try (FileChannel channel = FileChannel.open(Paths.get(archive),
+          StandardOpenOption.READ)) {
+        JmzArchive.Entry found = JmzArchive.find(JmzArchive.readDirectory(channel), entry);
+        if (out.equals(JMZip.STANDARD_STREAM)) {
+          try (OutputStream fileOut = JMZip.openOutput(out)) {
+            JmzArchive.extract(channel, found, fileOut, decoder);
+          }
+        } else {
+          JmzArchive.extract(channel, found, Paths.get(out), decoder);
+        }
+      }
     }
+  }
 
-    try {
-      if (fileOut != null) {
-        fileOut.write(arr);
+  /**
+   * unzips length bytes of the original file from offset on.
+   * @param zipped name of the zipped file or archive.
+   * @param out file or "-" to write the bytes to.
+   * @param entry name of the entry of an archive to read, null for a zipped
+   *        file.
+   * @param offset offset of the first byte in the original file.
+   * @param length number of bytes, fewer are written if the file ends first.
+   */
+  private static void unzipRange(String zipped, String out, String entry, long offset,
+      long length) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(zipped),
+        StandardOpenOption.READ);
+        OutputStream fileOut = JMZip.openOutput(out)) {
+      JmzReader reader;
+      if (entry == null) {
+        reader = new JmzReader(channel, 0, channel.size());
+      } else {
+        JmzArchive.Entry found = JmzArchive.find(JmzArchive.readDirectory(channel), entry);
+        reader = new JmzReader(channel, found.getOffset(), found.getZippedLength());
+      }
+      byte[] buffer = new byte[(int) Math.max(Math.min(length, 1 << 16), 0)];
+      for (long done = 0; done < length; ) {
+        int read = reader.read(offset + done, buffer, 0,
+            (int) Math.min(length - done, buffer.length));
+        if (read < 0) {
+          break;
+        }
+        fileOut.write(buffer, 0, read);
+        done += read;
       }
-    } catch (IOException i) {
-      i.printStackTrace();
     }
+  }
+
+  /**
+   * unzips a file written as a serialized HuffmanSave. The old JMZip wrote no
+   * bits for a file of one byte value repeated, so that file is rebuilt from
+   * the count of the byte instead.
+   * @param in stream positioned at the start of the file.
+   * @param fileOut stream the decoded bytes are written to.
+   */
+  private static void unzipLegacy(InputStream in, OutputStream fileOut)
+      throws IOException {
+    HuffmanSave huffSave = JmzFormat.readLegacy(in);
 
+    HuffTree tree = BuildHuffTree.buildLegacyTree(huffSave.getFrequencies());
+    if (tree != null && tree.root().isLeaf()) {
+      HuffLeafNode leaf = (HuffLeafNode) tree.root();
+      int count = huffSave.getFrequencies().get(leaf.value());
+      byte[] buffer = new byte[Math.max(Math.min(count, 1 << 16), 0)];
+      Arrays.fill(buffer, leaf.value());
+      for (int left = count; left > 0; left -= buffer.length) {
+        fileOut.write(buffer, 0, Math.min(left, buffer.length));
+      }
+      return;
+    }
+    fileOut.write(BuildHuffTree.decodeSeq(tree, huffSave.getEncoding()));
   }
 }
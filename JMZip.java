@@ -1,63 +1,115 @@
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
- * zip class.
- * 
+ * zip class. The input file is read a block at a time and the blocks are
+ * compressed in parallel, see BlockEncoder, and JmzFormat for the
+ * layout of the zipped file.
+ *
+ * <p>Usage:
+ * {@code JMZip <file> <zipped file> [-t threads] [-b block KB] [-l max code bits] [-s streams]}
+ * With -s 4 every block is split into 4 streams that JMUnzip decodes side by
+ * side, which unzips faster for a few bytes more per block once the JIT has
+ * compiled the decode loop, so it pays off on large files. Either name can
+ * be "-" for stdin or stdout. stdin is zipped in one pass as it arrives, see
+ * BlockEncoder.compressLive, so it can be a pipe that stays open. A directory
+ * is zipped into one archive of every file under it, see JmzArchive.
+ *
  * @author jeromeli
  *
  */
 public class JMZip {
+
+  /** File name that stands for stdin or stdout. */
+  static final String STANDARD_STREAM = "-";
+
   /**
    * main method.
-   * 
+   *
    * @param args command line args.
    */
   public static void main(String[] args) {
-    HuffmanSave huffSave = null;
 
+    // Early exit
+    if (args.length < 2 || args[1].substring(0, 1).equals("/")) {
+      System.err.println("You must enter a file name.");
+      return;
+    }
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    int blockSize = BlockEncoder.DEFAULT_BLOCK_SIZE;
+    int maxCodeLength = BlockEncoder.DEFAULT_MAX_CODE_LENGTH;
+    int streams = 1;
     try {
-      // Early exit
-      if (args.length < 2 || args[1].substring(0, 1).equals("/")) {
-        System.err.println("You must enter a file name.");
-        return;
+      for (int i = 2; i < args.length; i += 2) {
+        int value = Integer.parseInt(args[i + 1]);
+        if (args[i].equals("-t")) {
+          threads = value;
+        } else if (args[i].equals("-b")) {
+          blockSize = Math.multiplyExact(value, 1024);
+        } else if (args[i].equals("-l")) {
+          maxCodeLength = value;
+        } else if (args[i].equals("-s")) {
+          streams = value;
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
       }
+    } catch (RuntimeException re) {
+      System.err.println("Usage: JMZip <file> <zipped file> [-t threads] [-b block KB]"
+          + " [-l max code bits] [-s streams]");
+      return;
+    }
 
+    BlockEncoder encoder;
+    try {
+      encoder = new BlockEncoder(blockSize, threads, maxCodeLength, streams);
+    } catch (IllegalArgumentException iae) {
+      System.err.println(iae.getMessage());
+      return;
+    }
 
-      HashMap<Byte, Integer> seqMap;
-      HuffTree tree = null;
-
-      FileInputStream fis = new FileInputStream(args[0]);
-      BufferedInputStream bis = new BufferedInputStream(fis);
-
-      byte[] arr = bis.readAllBytes();
-      bis.close();
-
-      BitSequence bit = null;
-
-      seqMap = BuildHuffTree.readFreq(arr);
-      tree = BuildHuffTree.buildTree();
-      bit = BuildHuffTree.encode(tree, arr);
-      huffSave = new HuffmanSave(bit, seqMap);
+    if (isDirectory(args[0])) {
+      try {
+        new JmzArchive(blockSize, threads, maxCodeLength, streams)
+            .write(Paths.get(args[0]), Paths.get(args[1]));
+      } catch (IOException | InvalidPathException e) {
+        System.err.print(args[0] + " could not be zipped: " + e.getMessage());
+      }
+      return;
+    }
 
+    if (args[0].equals(STANDARD_STREAM)) {
+      // Zip stdin as it arrives.
+      try (OutputStream zipFile = openOutput(args[1])) {
+        encoder.compressLive(System.in, zipFile);
+      } catch (FileNotFoundException fnfe) {
+        System.err.print(args[1].toString() + "is not found");
+      } catch (IOException ioe) {
+        System.err.print(args[1].toString() + "is not valid");
+      }
+      return;
+    }
 
-    } catch (FileNotFoundException fnfe) {
+    FileChannel in;
+    try {
+      in = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ);
+    } catch (IOException | InvalidPathException e) {
       System.err.print("file not found.");
-    } catch (IOException ioe) {
-      System.err.println("Unable to open file.");
+      return;
     }
 
-    try {
-      FileOutputStream fileOut = new FileOutputStream(args[1]);
-      ObjectOutputStream zipFile = new ObjectOutputStream(fileOut);
-      zipFile.writeObject(huffSave);
-      zipFile.close();
+    try (FileChannel fileIn = in;
+        OutputStream zipFile = openOutput(args[1])) {
+      encoder.compress(fileIn, zipFile);
     } catch (FileNotFoundException fnfe) {
       System.err.print(args[1].toString() + "is not found");
       return;
@@ -71,4 +123,36 @@ public class JMZip {
 
   }
 
+  /**
+   * helper method that checks whether name is a directory, and not "-" or a
+   * name that is not valid.
+   */
+  private static boolean isDirectory(String name) {
+    try {
+      return !name.equals(STANDARD_STREAM) && Files.isDirectory(Paths.get(name));
+    } catch (InvalidPathException ipe) {
+      return false;
+    }
+  }
+
+  /**
+   * opens a file for writing, or stdout for "-". Closing the stream returned
+   * for stdout only flushes it.
+   *
+   * @param name file name.
+   * @return buffered stream.
+   * @throws FileNotFoundException if the file cannot be opened.
+   */
+  static OutputStream openOutput(String name) throws FileNotFoundException {
+    if (!name.equals(STANDARD_STREAM)) {
+      return new BufferedOutputStream(new FileOutputStream(name));
+    }
+    return new BufferedOutputStream(System.out) {
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+
 }
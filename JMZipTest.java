@@ -1,15 +1,36 @@
 import static org.junit.jupiter.api.Assertions.*;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -31,7 +52,7 @@ class JMZipTest {
   // Keep a list of all the files that are created so that they can be deleted.
   private String[] createdFiles = {"empty.dat", "empty.jmz", "one_byte.dat", "one_byte.jmz",
       "mary.txt", "mary.jmz", "fibonacci.dat", "fibonacci.jmz", "bytes.dat", "bytes.jmz",
-      "bytes_restored.dat", "flubber.jmz"};
+      "bytes_restored.dat", "flubber.jmz", "repeated.dat"};
 
 
   /**
@@ -85,6 +106,13 @@ class JMZipTest {
       }
     }
     fo.close();
+
+    // Create a file containing the same byte many times.
+    fo = new FileOutputStream(new File("repeated.dat"));
+    for (int i = 0; i < 1000; i++) {
+      fo.write(7);
+    }
+    fo.close();
   }
 
   /**
@@ -259,6 +287,346 @@ class JMZipTest {
 //    assertEquals(38557, result.getEncoding().length());
 //  }
 
+  // -----------------------------------------------
+  // TESTS FOR LIMITED CODE LENGTHS
+  // -----------------------------------------------
+
+  @Test
+  public void testLimitedCodeLengthsFitAndAreComplete() {
+    // Fibonacci counts give the deepest Huffman tree there is.
+    long[] freq = new long[256];
+    freq[0] = 1;
+    freq[1] = 1;
+    for (int b = 2; b < 40; b++) {
+      freq[b] = freq[b - 1] + freq[b - 2];
+    }
+    for (int maxLength = 6; maxLength <= 15; maxLength++) {
+      int[] lengths = BuildHuffTree.codeLengths(freq, maxLength);
+      long kraft = 0;
+      for (int b = 0; b < 256; b++) {
+        assertEquals(freq[b] != 0, lengths[b] != 0);
+        assertTrue(lengths[b] <= maxLength);
+        if (lengths[b] != 0) {
+          kraft += 1L << (maxLength - lengths[b]);
+        }
+      }
+      assertEquals(1L << maxLength, kraft);
+    }
+    assertThrows(IllegalArgumentException.class, () -> BuildHuffTree.codeLengths(freq, 5));
+  }
+
+  @Test
+  public void testLimitedCodeLengthsAreOptimal() {
+    Random random = new Random(12);
+    for (int trial = 0; trial < 500; trial++) {
+      int symbols = 2 + random.nextInt(6);
+      int maxLength = 32 - Integer.numberOfLeadingZeros(symbols - 1) + random.nextInt(3);
+      long[] freq = new long[256];
+      for (int b = 0; b < symbols; b++) {
+        freq[b] = 1 + random.nextInt(random.nextBoolean() ? 10 : 1000);
+      }
+      int[] lengths = BuildHuffTree.codeLengths(freq, maxLength);
+      long cost = 0;
+      for (int b = 0; b < symbols; b++) {
+        cost += freq[b] * lengths[b];
+      }
+      assertEquals(bestCost(freq, symbols, maxLength, 0, 0), cost);
+    }
+  }
+
+  /**
+   * helper method that tries every way to give the first symbols codes no
+   * longer than maxLength, from symbol b on, and returns the cheapest.
+   */
+  private long bestCost(long[] freq, int symbols, int maxLength, int b, long kraft) {
+    if (b == symbols) {
+      return 0;
+    }
+    long best = Long.MAX_VALUE;
+    for (int length = 1; length <= maxLength; length++) {
+      long used = kraft + (1L << (maxLength - length));
+      if (used <= 1L << maxLength) {
+        long rest = bestCost(freq, symbols, maxLength, b + 1, used);
+        if (rest != Long.MAX_VALUE) {
+          best = Math.min(best, freq[b] * length + rest);
+        }
+      }
+    }
+    return best;
+  }
+
+  // -----------------------------------------------
+  // TESTS FOR BitSequence
+  // -----------------------------------------------
+
+  /**
+   * 0x0123456789ABCDEF in 64 bits then 0x1A5B in 13 bits, serialized by the
+   * original BitSequence, which stored its bits in a byte array.
+   */
+  private static final String OLD_BITS =
+      "rO0ABXNyAAtCaXRTZXF1ZW5jZQAAAAAAAAABAwACSQAHbnVtQml0c1sABWJ5dGVzdAACW0J4cAAAAE11"
+      + "cgACW0Ks8xf4BghU4AIAAHhwAAAACu/Nq4lnRSMBWxp4";
+
+  @Test
+  public void testBitSequenceSerializesLikeTheByteArrayVersion()
+      throws IOException, ClassNotFoundException {
+    byte[] old = Base64.getDecoder().decode(OLD_BITS);
+    BitSequence bits = new BitSequence();
+    bits.appendBits(0x0123456789ABCDEFL, 64);
+    bits.appendBits(0x1A5B, 13);
+
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(old))) {
+      BitSequence read = (BitSequence) in.readObject();
+      assertEquals("11110111101100111101010110010001111001101010001011000100100000001101101001011",
+          read.toString());
+      assertEquals(bits, read);
+      assertEquals(0x1A5B, read.readBits(64, 13));
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(bits);
+    }
+    assertArrayEquals(old, bytes.toByteArray());
+  }
+
+  @Test
+  public void testBitsAcrossAWordBoundary() {
+    Random random = new Random(7);
+    for (int offset = 60; offset <= 70; offset++) {
+      for (int count = 1; count <= 64; count++) {
+        long value = random.nextLong();
+        long masked = count == 64 ? value : value & ((1L << count) - 1);
+        BitSequence bits = new BitSequence();
+        BitSequence oneByOne = new BitSequence();
+        for (int i = 0; i < offset; i++) {
+          bits.appendBit(i % 3);
+          oneByOne.appendBit(i % 3);
+        }
+        bits.appendBits(value, count);
+        for (int i = 0; i < count; i++) {
+          oneByOne.appendBit((int) (value >>> i) & 1);
+        }
+        bits.appendBits(0x15, 5);
+        for (int i = 0; i < 5; i++) {
+          oneByOne.appendBit((0x15 >>> i) & 1);
+        }
+
+        assertEquals(oneByOne, bits, "offset " + offset + ", count " + count);
+        assertEquals(masked, bits.readBits(offset, count));
+        assertEquals(0x15, bits.readBits(offset + count, 5));
+        for (int i = 0; i < count; i++) {
+          assertEquals((int) (value >>> i) & 1, bits.getBit(offset + i));
+        }
+      }
+    }
+  }
+
+  // -----------------------------------------------
+  // TESTS FOR THE TABLE DRIVEN DECODER
+  // -----------------------------------------------
+
+  /**
+   * helper method that returns Fibonacci counts of the first symbols bytes,
+   * 1, 1, 2, 3, 5 and so on, shuffled. These give the deepest tree there is,
+   * with codes of up to symbols - 1 bits.
+   */
+  private byte[] fibonacciBytes(Random random, int symbols) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int prev1 = 0;
+    int prev2 = 1;
+    for (int b = 0; b < symbols; b++) {
+      for (int i = 0; i < prev2; i++) {
+        bytes.write(b);
+      }
+      int next = prev1 + prev2;
+      prev1 = prev2;
+      prev2 = next;
+    }
+    byte[] result = bytes.toByteArray();
+    for (int i = result.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      byte tmp = result[i];
+      result[i] = result[j];
+      result[j] = tmp;
+    }
+    return result;
+  }
+
+  @Test
+  public void testDecodeSeqMatchesTheBitwiseWalk() throws IOException {
+    Random random = new Random(3);
+    byte[] randomBytes = new byte[50000];
+    random.nextBytes(randomBytes);
+    byte[][] inputs = {fibonacciBytes(random, 24), randomBytes,
+        Files.readAllBytes(FileSystems.getDefault().getPath("bytes.dat")),
+        Files.readAllBytes(FileSystems.getDefault().getPath("mary.txt")), {5, 6}};
+
+    for (byte[] input : inputs) {
+      HashMap<Byte, Integer> freq = BuildHuffTree.readFreq(input);
+      for (HuffTree tree : new HuffTree[] {BuildHuffTree.buildTree(freq),
+          BuildHuffTree.buildLegacyTree(freq)}) {
+        BitSequence bits = BuildHuffTree.encode(tree, input);
+        assertArrayEquals(input, BuildHuffTree.decodeSeq(tree, bits));
+        assertArrayEquals(input, BuildHuffTree.decodeSeqBitwise(tree, bits));
+
+        // Bits that are not whole codes, with the last one cut short.
+        BitSequence noise = new BitSequence();
+        for (int i = 0; i < 2000; i++) {
+          noise.appendBits(random.nextLong(), 1 + random.nextInt(64));
+        }
+        assertArrayEquals(BuildHuffTree.decodeSeqBitwise(tree, noise),
+            BuildHuffTree.decodeSeq(tree, noise));
+      }
+    }
+  }
+
+  @Test
+  public void testCodesLongerThanTheFlatTableAreDecoded() throws IOException {
+    Random random = new Random(16);
+    // Mostly short codes, with a long tail of rare bytes.
+    byte[] geometric = new byte[200000];
+    for (int i = 0; i < geometric.length; i++) {
+      geometric[i] = (byte) Integer.numberOfTrailingZeros(random.nextInt() | 1 << 30);
+    }
+    for (byte[] input : new byte[][] {fibonacciBytes(random, 24), geometric}) {
+      int[] freq = BuildHuffTree.countFreq(input, 0, input.length);
+      HuffCodebook codebook = HuffCodebook.fromFrequencies(freq, 24);
+      assertTrue(codebook.maxLength() > HuffCodebook.FLAT_TABLE_BITS);
+      byte[] encoded = new byte[(int) (BuildHuffTree.encodedBits(codebook, freq) / 8) + 8];
+      int end = BuildHuffTree.encode(codebook, input, 0, input.length, encoded, 0);
+
+      byte[] decoded = new byte[input.length];
+      BuildHuffTree.decode(codebook, new BitInputStream(ByteBuffer.wrap(encoded, 0, end)),
+          decoded, 0, input.length);
+      assertArrayEquals(input, decoded);
+      BitInputStream in = new BitInputStream(ByteBuffer.wrap(encoded, 0, end));
+      BuildHuffTree.skip(codebook, in, input.length / 3);
+      ByteBuffer rest = ByteBuffer.allocate(input.length - input.length / 3);
+      BuildHuffTree.decode(codebook, in, rest, rest.capacity());
+      assertArrayEquals(Arrays.copyOfRange(input, input.length / 3, input.length),
+          rest.array());
+
+      // Whole blocks, in one stream and in four, into heap and direct buffers.
+      for (int streams : new int[] {1, 4}) {
+        HuffmanCodec codec = new HuffmanCodec(1 << 16, 2, 24, streams);
+        ByteBuffer zipped = zip(codec, input);
+        for (ByteBuffer out : new ByteBuffer[] {ByteBuffer.allocate(input.length),
+            ByteBuffer.allocateDirect(input.length)}) {
+          assertEquals(input.length, codec.decompress(zipped.duplicate(), out));
+          out.flip();
+          byte[] restored = new byte[input.length];
+          out.get(restored);
+          assertArrayEquals(input, restored);
+        }
+      }
+    }
+  }
+
+  /**
+   * A tree in the priority queue of treeFromQueue, with its place among
+   * trees of equal weight.
+   */
+  private static class Queued implements Comparable<Queued> {
+    private final HuffBaseNode node;
+    private final int order;
+
+    Queued(HuffBaseNode node, int order) {
+      this.node = node;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(Queued other) {
+      int byWeight = Long.compare(node.weight(), other.node.weight());
+      return byWeight != 0 ? byWeight : Integer.compare(order, other.order);
+    }
+  }
+
+  /**
+   * helper method that builds the tree with a priority queue of node
+   * objects, the way buildTree did before HuffArrayTree: ties go to the
+   * smaller byte value, then to the older internal node.
+   */
+  private HuffTree treeFromQueue(long[] freq) {
+    PriorityQueue<Queued> queue = new PriorityQueue<>();
+    for (int b = 0; b < 256; b++) {
+      if (freq[b] != 0) {
+        queue.add(new Queued(new HuffLeafNode((byte) b, freq[b]), b));
+      }
+    }
+    int order = 256;
+    while (queue.size() > 1) {
+      HuffBaseNode left = queue.poll().node;
+      HuffBaseNode right = queue.poll().node;
+      queue.add(new Queued(new HuffInternalNode(left, right, left.weight() + right.weight()),
+          order++));
+    }
+    return new HuffTree(queue.poll().node);
+  }
+
+  @Test
+  public void testArrayTreeMatchesThePriorityQueueTree() {
+    Random random = new Random(17);
+    List<long[]> inputs = new ArrayList<>();
+    long[] fibonacci = new long[256];
+    fibonacci[0] = 1;
+    fibonacci[1] = 1;
+    for (int b = 2; b < 60; b++) {
+      fibonacci[b] = fibonacci[b - 1] + fibonacci[b - 2];
+    }
+    inputs.add(fibonacci);
+    long[] even = new long[256];
+    Arrays.fill(even, 1000);
+    inputs.add(even);
+    long[] huge = new long[256];
+    huge[3] = 1L << 61;
+    huge[200] = 1L << 60;
+    huge[9] = 1;
+    inputs.add(huge);
+    long[] single = new long[256];
+    single[42] = 7;
+    inputs.add(single);
+    for (int trial = 0; trial < 200; trial++) {
+      // Small counts give many ties, scattered ones give skewed trees.
+      long[] freq = new long[256];
+      int symbols = 2 + random.nextInt(255);
+      int range = random.nextBoolean() ? 4 : 1 << random.nextInt(20);
+      for (int i = 0; i < symbols; i++) {
+        freq[random.nextInt(256)] = 1 + random.nextInt(range);
+      }
+      inputs.add(freq);
+    }
+
+    for (long[] freq : inputs) {
+      HuffArrayTree built = HuffArrayTree.build(freq);
+      HuffArrayTree expected = HuffArrayTree.fromTree(treeFromQueue(freq));
+      assertArrayEquals(expected.codeLengths(), built.codeLengths());
+      assertArrayEquals(expected.codes(), built.codes());
+      assertEquals(expected.weight(), built.weight());
+      assertArrayEquals(expected.codes(),
+          HuffArrayTree.fromTree(BuildHuffTree.buildTree(freq)).codes());
+
+      // The old JMZip broke ties another way, but its codes cost the same.
+      if (built.weight() < Integer.MAX_VALUE) {
+        HashMap<Byte, Integer> map = new HashMap<>();
+        for (int b = 0; b < 256; b++) {
+          if (freq[b] != 0) {
+            map.put((byte) b, (int) freq[b]);
+          }
+        }
+        int[] legacy = BuildHuffTree.codeLengths(BuildHuffTree.buildLegacyTree(map));
+        int[] lengths = built.codeLengths();
+        long legacyBits = 0;
+        long bits = 0;
+        for (int b = 0; b < 256; b++) {
+          legacyBits += freq[b] * legacy[b];
+          bits += freq[b] * lengths[b];
+        }
+        assertEquals(legacyBits, bits);
+      }
+    }
+  }
+
   // -----------------------------------------------
   // TESTS FOR CORRECT RECONSTRUCTION
   // -----------------------------------------------
@@ -273,6 +641,13 @@ class JMZipTest {
     org.junit.Assert.assertArrayEquals(bytes1, bytes2);
   }
 
+  private ByteBuffer zip(HuffmanCodec codec, byte[] bytes) {
+    ByteBuffer zipped = ByteBuffer.allocate((int) codec.maxCompressedLength(bytes.length));
+    codec.compress(ByteBuffer.wrap(bytes), zipped);
+    zipped.flip();
+    return zipped;
+  }
+
   @Test
   public void testEmptyFileCorrectlyRestored() throws IOException {
     checkReconstruction("empty.dat");
@@ -297,5 +672,534 @@ class JMZipTest {
   public void testByteFileCorrectlyRestored() throws IOException {
     checkReconstruction("bytes.dat");
   }
+
+  @Test
+  public void testRepeatedByteFileCorrectlyRestored() throws IOException {
+    checkReconstruction("repeated.dat");
+  }
+
+  @Test
+  public void testLiveStreamFlushesEachBlockAsItArrives() throws IOException {
+    byte[][] chunks = {"Mary had a little lamb".getBytes(), "x".getBytes(),
+        "It's fleece was white as snow.".getBytes()};
+    int[] flushed = {0};
+    ByteArrayOutputStream zipped = new ByteArrayOutputStream() {
+      @Override
+      public void flush() {
+        flushed[0] = size();
+      }
+    };
+    List<Integer> flushedBeforeRead = new ArrayList<>();
+    // Hands out one chunk at a time in short reads, like a pipe.
+    InputStream in = new InputStream() {
+      private int chunk;
+      private int pos;
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (pos == 0) {
+          flushedBeforeRead.add(flushed[0]);
+        }
+        if (chunk == chunks.length) {
+          return -1;
+        }
+        int count = Math.min(Math.min(len, 5), chunks[chunk].length - pos);
+        System.arraycopy(chunks[chunk], pos, b, off, count);
+        pos += count;
+        if (pos == chunks[chunk].length) {
+          chunk++;
+          pos = 0;
+        }
+        return count;
+      }
+
+      @Override
+      public int read() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int available() {
+        return chunk == chunks.length || pos == 0 ? 0 : chunks[chunk].length - pos;
+      }
+    };
+    new BlockEncoder(1024, 4).compressLive(in, zipped);
+
+    // One block per chunk, each flushed before the next chunk was read.
+    ByteArrayInputStream blocks = new ByteArrayInputStream(zipped.toByteArray());
+    DataInputStream dataIn = new DataInputStream(blocks);
+    JmzFormat.readHeader(dataIn);
+    ByteArrayOutputStream original = new ByteArrayOutputStream();
+    for (int i = 0; i < chunks.length; i++) {
+      JmzFormat.BlockHeader header = JmzFormat.readBlockHeader(dataIn, 1024);
+      assertEquals(chunks[i].length, header.getLength());
+      dataIn.skipBytes(header.getPayloadLength());
+      assertEquals(zipped.size() - blocks.available(), (int) flushedBeforeRead.get(i + 1));
+      original.write(chunks[i]);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new BlockDecoder(1).decompress(new ByteArrayInputStream(zipped.toByteArray()), out);
+    assertArrayEquals(original.toByteArray(), out.toByteArray());
+  }
+
+  @Test
+  public void testSourceFailingMidStreamStopsThePipeline() {
+    for (Throwable failure : new Throwable[] {new IOException("disk"),
+        new OutOfMemoryError("payload")}) {
+      // Hands out 64 KB and then fails, while blocks are still being encoded.
+      InputStream in = new InputStream() {
+        private int left = 64 * 1024;
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (left == 0) {
+            if (failure instanceof IOException) {
+              throw (IOException) failure;
+            }
+            throw (Error) failure;
+          }
+          int count = Math.min(len, left);
+          Arrays.fill(b, off, off + count, (byte) (left % 7));
+          left -= count;
+          return count;
+        }
+
+        @Override
+        public int read() {
+          throw new UnsupportedOperationException();
+        }
+      };
+      assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+        IOException e = assertThrows(IOException.class,
+            () -> new BlockEncoder(1024, 4).compress(in, new ByteArrayOutputStream()));
+        assertTrue(e == failure || e.getCause() == failure);
+      });
+      assertFalse(readerRunning());
+    }
+  }
+
+  @Test
+  public void testWriterFailingStopsThePipeline() throws IOException {
+    byte[] bytes = new byte[256 * 1024];
+    new Random(5).nextBytes(bytes);
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] &= 0x1f;
+    }
+    ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+    new BlockEncoder(1024, 1).compress(new ByteArrayInputStream(bytes), zipped);
+    boolean[] slow = {false};
+    // Once the first block is written, each read blocks for a while and
+    // ignores interrupts, like a read from a pipe.
+    InputStream in = new ByteArrayInputStream(zipped.toByteArray()) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        if (slow[0]) {
+          pause(200);
+        }
+        return super.read(b, off, len);
+      }
+    };
+    // Fails on the second block, while the reader is filling the queue.
+    OutputStream out = new OutputStream() {
+      private int blocks;
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        slow[0] = true;
+        if (blocks++ > 0) {
+          throw new IOException("disk full");
+        }
+      }
+
+      @Override
+      public void write(int b) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    assertTimeoutPreemptively(Duration.ofSeconds(30), () -> assertThrows(IOException.class,
+        () -> new BlockDecoder(4).decompress(in, out)));
+    assertFalse(readerRunning());
+  }
+
+  /**
+   * sleeps for millis milliseconds even if interrupted, then sets the
+   * interrupt flag again.
+   */
+  private static void pause(long millis) {
+    long end = System.nanoTime() + millis * 1_000_000;
+    boolean interrupted = false;
+    for (long left; (left = end - System.nanoTime()) > 0; ) {
+      try {
+        Thread.sleep(left / 1_000_000 + 1);
+      } catch (InterruptedException ie) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * returns true if a reader thread of a BlockPipeline is still alive.
+   */
+  private static boolean readerRunning() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .anyMatch(t -> t.getName().equals("jmz-reader"));
+  }
+
+  @Test
+  public void testCodecSharedByThreadsRestoresEveryFile() throws Exception {
+    HuffmanCodec codec = new HuffmanCodec(1024, 1);
+    String[] names = {"empty.dat", "one_byte.dat", "mary.txt", "fibonacci.dat", "bytes.dat",
+        "repeated.dat"};
+    ExecutorService pool = Executors.newFixedThreadPool(names.length);
+    try {
+      List<Future<byte[]>> restored = new ArrayList<>();
+      for (String name : names) {
+        byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath(name));
+        restored.add(pool.submit(() -> {
+          ByteBuffer zipped = zip(codec, bytes);
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          codec.decompress(new ByteArrayInputStream(zipped.array(), 0, zipped.limit()), out);
+          return out.toByteArray();
+        }));
+      }
+      for (int i = 0; i < names.length; i++) {
+        assertArrayEquals(Files.readAllBytes(FileSystems.getDefault().getPath(names[i])),
+            restored.get(i).get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testFourStreamCodecRestoresEveryFile() throws IOException {
+    HuffmanCodec codec = new HuffmanCodec(5000, 1, BlockEncoder.DEFAULT_MAX_CODE_LENGTH, 4);
+    for (String name : new String[] {"empty.dat", "one_byte.dat", "mary.txt",
+        "fibonacci.dat", "bytes.dat", "repeated.dat"}) {
+      byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath(name));
+      ByteBuffer zipped = zip(codec, bytes);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      codec.decompress(new ByteArrayInputStream(zipped.array(), 0, zipped.limit()), out);
+      assertArrayEquals(bytes, out.toByteArray());
+      ByteBuffer restored = ByteBuffer.allocate(bytes.length);
+      codec.decompress(zipped, restored);
+      assertArrayEquals(bytes, restored.array());
+    }
+  }
   
+
+  @Test
+  public void testSmallMessageDoesNotCostABlock() throws IOException {
+    // One thread, so everything is allocated on this one and counted.
+    HuffmanCodec codec = new HuffmanCodec(1 << 20, 1);
+    byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath("mary.txt"));
+    for (int i = 0; i < 100; i++) {
+      zip(codec, bytes);
+    }
+    long allocated = HuffBenchmark.allocatedBytes();
+    ByteBuffer zipped = zip(codec, bytes);
+    allocated = HuffBenchmark.allocatedBytes() - allocated;
+    // Counts, code lengths and tables take a few KB whatever the length.
+    assertTrue(allocated < 64 * 1024 + 64 * bytes.length, allocated + " bytes");
+
+    ByteBuffer restored = ByteBuffer.allocate(bytes.length);
+    codec.decompress(zipped, restored);
+    assertArrayEquals(bytes, restored.array());
+  }
+
+  @Test
+  public void testEachBlockTypeIsChosenAndRestored() throws IOException {
+    // One block of random bytes, one of a single byte, then one of text.
+    byte[] bytes = new byte[3 * 1024];
+    new Random(3).nextBytes(bytes);
+    Arrays.fill(bytes, 1024, 2048, (byte) 'x');
+    byte[] text = Files.readAllBytes(FileSystems.getDefault().getPath("mary.txt"));
+    for (int i = 2048; i < bytes.length; i++) {
+      bytes[i] = text[i % text.length];
+    }
+    HuffmanCodec codec = new HuffmanCodec(1024, 1);
+    ByteBuffer zipped = zip(codec, bytes);
+
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(zipped.array(), 0, zipped.limit()));
+    assertEquals(1024, JmzFormat.readHeader(in));
+    int[] types = {JmzFormat.STORED, JmzFormat.RUN, JmzFormat.HUFFMAN};
+    for (int type : types) {
+      JmzFormat.BlockHeader header = JmzFormat.readBlockHeader(in, 1024);
+      assertEquals(type, header.getType());
+      assertEquals(1024, header.getLength());
+      in.skipBytes(header.getPayloadLength());
+    }
+    assertNull(JmzFormat.readBlockHeader(in, 1024));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.decompress(new ByteArrayInputStream(zipped.array(), 0, zipped.limit()), out);
+    assertArrayEquals(bytes, out.toByteArray());
+    ByteBuffer restored = ByteBuffer.allocate(bytes.length);
+    codec.decompress(zipped, restored);
+    assertArrayEquals(bytes, restored.array());
+  }
+
+  @Test
+  public void testDamagedBlockIsCaught() throws IOException {
+    HuffmanCodec codec = new HuffmanCodec();
+    byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath("mary.txt"));
+    ByteBuffer zipped = zip(codec, bytes);
+    // Flip a bit near the end of the only block, before its 12 byte index entry.
+    int damaged = zipped.limit() - JmzFormat.END_SIZE - 12 - 10;
+    zipped.put(damaged, (byte) (zipped.get(damaged) ^ 0x40));
+
+    assertThrows(IOException.class, () -> codec.decompress(
+        new ByteArrayInputStream(zipped.array(), 0, zipped.limit()),
+        new ByteArrayOutputStream()));
+    assertThrows(IOException.class,
+        () -> codec.decompress(zipped.duplicate(), ByteBuffer.allocate(bytes.length)));
+  }
+
+  @Test
+  public void testFileOfManyBlocksIsDecodedInParallel() throws IOException {
+    // Slow skewed blocks first, then fast stored and run blocks, so later
+    // blocks tend to finish before earlier ones.
+    byte[] bytes = new byte[300 * 1024 + 123];
+    Random random = new Random(9);
+    for (int i = 0; i < 200 * 1024; i++) {
+      bytes[i] = (byte) Math.min(255, (int) -Math.log(random.nextDouble()) * 4);
+    }
+    byte[] noise = new byte[50 * 1024];
+    random.nextBytes(noise);
+    System.arraycopy(noise, 0, bytes, 200 * 1024, noise.length);
+    Arrays.fill(bytes, 250 * 1024, bytes.length, (byte) 'x');
+    Path file = FileSystems.getDefault().getPath("repeated.dat");
+    Path zipped = FileSystems.getDefault().getPath("flubber.jmz");
+    Path restored = FileSystems.getDefault().getPath("bytes_restored.dat");
+    Files.write(file, bytes);
+
+    for (String streams : new String[] {"1", "4"}) {
+      JMZip.main(new String[] {"repeated.dat", "flubber.jmz", "-b", "4", "-s", streams});
+      try (FileChannel channel = FileChannel.open(zipped)) {
+        assertEquals(76, JmzFormat.readIndex(channel).getBlockCount());
+      }
+      assertEquals(bytes.length, new BlockDecoder(4).decompress(zipped, restored));
+      assertArrayEquals(bytes, Files.readAllBytes(restored));
+    }
+  }
+
+  @Test
+  public void testDamagedIndexIsCaught() throws IOException {
+    byte[] bytes = new byte[40 * 1024];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * i >>> 7);
+    }
+    Path zipped = FileSystems.getDefault().getPath("flubber.jmz");
+    Path restored = FileSystems.getDefault().getPath("bytes_restored.dat");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new BlockEncoder(4096, 1).compress(new ByteArrayInputStream(bytes), out);
+    byte[] good = out.toByteArray();
+    long indexOffset = ByteBuffer.wrap(good, good.length - 8, 8).getLong();
+
+    List<byte[]> damaged = new ArrayList<>();
+    damaged.add(Arrays.copyOf(good, good.length - 1));
+    damaged.add(Arrays.copyOf(good, good.length / 2));
+    // The offset of the second block, one byte late.
+    byte[] offset = good.clone();
+    offset[(int) indexOffset + 4 + 12 + 7]++;
+    damaged.add(offset);
+    // The length of the last block, one byte short.
+    byte[] length = good.clone();
+    length[good.length - JmzFormat.TRAILER_SIZE - 1]--;
+    damaged.add(length);
+    for (byte[] file : damaged) {
+      Files.write(zipped, file);
+      assertThrows(IOException.class, () -> new BlockDecoder(4).decompress(zipped, restored));
+    }
+    Files.write(zipped, good);
+    new BlockDecoder(4).decompress(zipped, restored);
+    assertArrayEquals(bytes, Files.readAllBytes(restored));
+  }
+
+  @Test
+  public void testArchiveRestoresEveryEntry() throws IOException {
+    Path dir = Files.createTempDirectory("jmz");
+    try {
+      Files.createDirectories(dir.resolve("in/sub"));
+      String[] names = {"mary.txt", "empty.dat", "sub/fibonacci.dat", "sub/bytes.dat"};
+      for (String name : names) {
+        Files.copy(FileSystems.getDefault().getPath(name.replace("sub/", "")),
+            dir.resolve("in").resolve(name));
+      }
+      Path archive = dir.resolve("in.jmz");
+      new JmzArchive(5000, 2, BlockEncoder.DEFAULT_MAX_CODE_LENGTH, 1)
+          .write(dir.resolve("in"), archive);
+
+      assertEquals(names.length, JmzArchive.extractAll(archive, dir.resolve("out"),
+          new BlockDecoder(2)).size());
+      for (String name : names) {
+        assertArrayEquals(Files.readAllBytes(dir.resolve("in").resolve(name)),
+            Files.readAllBytes(dir.resolve("out").resolve(name)));
+      }
+    } finally {
+      try (Stream<Path> walk = Files.walk(dir)) {
+        walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  @Test
+  public void testReaderReturnsAnyRange() throws IOException {
+    byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath("bytes.dat"));
+    HuffmanCodec codec = new HuffmanCodec(5000, 1, BlockEncoder.DEFAULT_MAX_CODE_LENGTH, 4);
+    ByteBuffer zipped = zip(codec, bytes);
+    Path file = Files.createTempFile("jmz", ".jmz");
+    try {
+      Files.write(file, Arrays.copyOf(zipped.array(), zipped.limit()));
+      try (JmzReader reader = new JmzReader(file)) {
+        assertEquals(bytes.length, reader.length());
+        for (int offset = 0; offset < bytes.length; offset += 333) {
+          byte[] range = new byte[777];
+          int read = reader.read(offset, range);
+          assertEquals(Math.min(range.length, bytes.length - offset), read);
+          assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + read),
+              Arrays.copyOf(range, read));
+        }
+        assertEquals(-1, reader.read(bytes.length, new byte[1]));
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testSharedCodebookRestoresMessages() throws IOException {
+    SharedCodebook shared = SharedCodebook.train(
+        Arrays.asList(FileSystems.getDefault().getPath("mary.txt")));
+    ByteArrayOutputStream saved = new ByteArrayOutputStream();
+    shared.write(saved);
+    SharedCodebook loaded = SharedCodebook.read(new ByteArrayInputStream(saved.toByteArray()));
+    assertEquals(shared.getId(), loaded.getId());
+
+    for (String name : new String[] {"empty.dat", "one_byte.dat", "mary.txt", "bytes.dat"}) {
+      byte[] bytes = Files.readAllBytes(FileSystems.getDefault().getPath(name));
+      byte[] zipped = shared.compress(bytes);
+      assertTrue(zipped.length <= bytes.length + SharedCodebook.MAX_HEADER_SIZE);
+      assertEquals(shared.getId(), SharedCodebook.id(zipped));
+      assertArrayEquals(bytes, loaded.decompress(zipped));
+    }
+
+    SharedCodebook other = SharedCodebook.train(
+        Arrays.asList(FileSystems.getDefault().getPath("bytes.dat")));
+    assertThrows(IOException.class, () -> other.decompress(shared.compress(new byte[10])));
+  }
+
+  @Test
+  public void testCodebookCacheDropsLeastRecentlyUsed() {
+    CodebookCache cache = new CodebookCache(2);
+    int[][] lengths = new int[3][256];
+    for (int i = 0; i < 3; i++) {
+      lengths[i][i] = 1;
+      lengths[i][i + 1] = 1;
+    }
+    HuffCodebook first = cache.get(lengths[0]);
+    cache.get(lengths[1]);
+    assertTrue(first == cache.get(lengths[0].clone()));
+    cache.get(lengths[2]);
+    assertTrue(first == cache.get(lengths[0]));
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.getHits());
+    assertEquals(3, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+  }
+
+  // -----------------------------------------------
+  // TESTS FOR FILES WRITTEN BY THE OLD JMZIP
+  // -----------------------------------------------
+
+  /** mary.txt zipped by the original JMZip, which wrote a HuffmanSave. */
+  private static final String OLD_MARY_JMZ =
+      "rO0ABXNyAAtIdWZmbWFuU2F2ZQAAAAAAAAABAgACTAAIZW5jb2Rpbmd0AA1MQml0U2VxdWVuY2U7"
+      + "TAALZnJlcXVlbmNpZXN0ABNMamF2YS91dGlsL0hhc2hNYXA7eHBzcgALQml0U2VxdWVuY2UAAAAA"
+      + "AAAAAQMAAkkAB251bUJpdHNbAAVieXRlc3QAAltCeHAAAADjdXIAAltCrPMX+AYIVOACAAB4cAAA"
+      + "AB2yi5TtEnM94p6zSBZUkQ/1/WePetDd4/EwTatLAnhzcgARamF2YS51dGlsLkhhc2hNYXAFB9rB"
+      + "wxZg0QMAAkYACmxvYWRGYWN0b3JJAAl0aHJlc2hvbGR4cD9AAAAAAAAYdwgAAAAgAAAAF3NyAA5q"
+      + "YXZhLmxhbmcuQnl0ZZxOYITuUPUcAgABQgAFdmFsdWV4cgAQamF2YS5sYW5nLk51bWJlcoaslR0L"
+      + "lOCLAgAAeHAgc3IAEWphdmEubGFuZy5JbnRlZ2VyEuKgpPeBhzgCAAFJAAV2YWx1ZXhxAH4ADAAA"
+      + "AAtzcQB+AAthc3EAfgAOAAAABnNxAH4AC2JzcQB+AA4AAAABc3EAfgALY3EAfgATc3EAfgALZHEA"
+      + "fgATc3EAfgALZXNxAH4ADgAAAAVzcQB+AAtmcQB+ABNzcQB+AAsncQB+ABNzcQB+AAtoc3EAfgAO"
+      + "AAAAAnNxAH4AC2lxAH4AG3NxAH4AC0lxAH4AE3NxAH4ACwpxAH4AE3NxAH4AC2xzcQB+AA4AAAAE"
+      + "c3EAfgALTXEAfgATc3EAfgALbXEAfgATc3EAfgALLnEAfgAbc3EAfgALbnEAfgATc3EAfgALb3EA"
+      + "fgATc3EAfgALcnEAfgATc3EAfgALc3EAfgAgc3EAfgALdHEAfgAgc3EAfgALd3NxAH4ADgAAAANz"
+      + "cQB+AAt5cQB+ABN4";
+
+  /** "zzzzzzzz" zipped by the original JMZip, which wrote no bits for it. */
+  private static final String OLD_ZZZ_JMZ =
+      "rO0ABXNyAAtIdWZmbWFuU2F2ZQAAAAAAAAABAgACTAAIZW5jb2Rpbmd0AA1MQml0U2VxdWVuY2U7"
+      + "TAALZnJlcXVlbmNpZXN0ABNMamF2YS91dGlsL0hhc2hNYXA7eHBzcgALQml0U2VxdWVuY2UAAAAA"
+      + "AAAAAQMAAkkAB251bUJpdHNbAAVieXRlc3QAAltCeHAAAAAAdXIAAltCrPMX+AYIVOACAAB4cAAA"
+      + "AAB4c3IAEWphdmEudXRpbC5IYXNoTWFwBQfawcMWYNEDAAJGAApsb2FkRmFjdG9ySQAJdGhyZXNo"
+      + "b2xkeHA/QAAAAAAADHcIAAAAEAAAAAFzcgAOamF2YS5sYW5nLkJ5dGWcTmCE7lD1HAIAAUIABXZh"
+      + "bHVleHIAEGphdmEubGFuZy5OdW1iZXKGrJUdC5TgiwIAAHhwenNyABFqYXZhLmxhbmcuSW50ZWdl"
+      + "chLioKT3gYc4AgABSQAFdmFsdWV4cQB+AAwAAAAIeA==";
+
+  @Test
+  public void testUnzipReadsFilesWrittenByTheOldJMZip() throws IOException {
+    Files.write(FileSystems.getDefault().getPath("mary.jmz"),
+        Base64.getDecoder().decode(OLD_MARY_JMZ));
+    JMUnzip.main(new String[] {"mary.jmz", "bytes_restored.dat"});
+    assertArrayEquals(Files.readAllBytes(FileSystems.getDefault().getPath("mary.txt")),
+        Files.readAllBytes(FileSystems.getDefault().getPath("bytes_restored.dat")));
+  }
+
+  @Test
+  public void testUnzipRestoresOldFilesOfOneByteValue() throws IOException {
+    Files.write(FileSystems.getDefault().getPath("one_byte.jmz"),
+        Base64.getDecoder().decode(OLD_ZZZ_JMZ));
+    JMUnzip.main(new String[] {"one_byte.jmz", "bytes_restored.dat"});
+    assertArrayEquals("zzzzzzzz".getBytes(),
+        Files.readAllBytes(FileSystems.getDefault().getPath("bytes_restored.dat")));
+  }
+
+  @Test
+  public void testLegacyStreamOfAnotherClassIsRejected() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(new ArrayList<>(List.of("not", "a", "HuffmanSave")));
+    }
+    assertThrows(InvalidClassException.class,
+        () -> JmzFormat.readLegacy(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test
+  public void testLegacyStreamWithAnOversizedArrayIsRejected() throws IOException {
+    BitSequence bits = new BitSequence();
+    bits.appendBits(0x78563412L, 32);
+    HashMap<Byte, Integer> freq = new HashMap<>();
+    for (int b = 0; b < 256; b++) {
+      freq.put((byte) b, 1000 + b);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(new HuffmanSave(bits, freq));
+    }
+    byte[] stream = bytes.toByteArray();
+    // A full map is within the limits.
+    assertEquals(freq, JmzFormat.readLegacy(new ByteArrayInputStream(stream)).getFrequencies());
+
+    // Declare the 4 bytes of the bit sequence as nearly 2^31.
+    byte[] array = {0, 0, 0, 4, 0x12, 0x34, 0x56, 0x78};
+    int at = -1;
+    for (int i = 0; at < 0 && i + array.length <= stream.length; i++) {
+      if (Arrays.equals(array, 0, array.length, stream, i, i + array.length)) {
+        at = i;
+      }
+    }
+    assertTrue(at >= 0);
+    stream[at] = 0x7F;
+    stream[at + 1] = (byte) 0xFF;
+    assertThrows(InvalidClassException.class,
+        () -> JmzFormat.readLegacy(new ByteArrayInputStream(stream)));
+  }
+
 }
@@ -0,0 +1,408 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Zips every file under a directory into one archive, and lists or unzips
+ * the entries of an archive one at a time. Each entry is a whole zipped file
+ * as JmzFormat describes, and a directory at the end says where each one is:
+ *
+ * <pre>
+ *   int     MAGIC
+ *   byte    VERSION
+ *   then each entry, a zipped file
+ *   int     number of entries
+ *   for each entry
+ *     UTF     name relative to the zipped directory, with / between names
+ *     long    offset of the entry from the start of the archive
+ *     long    length of the entry in the archive
+ *     long    length of the original file
+ *     int     file checksum of the entry, the same as in its own trailer
+ *   long    offset of the number of entries from the start of the archive
+ *   int     MAGIC
+ * </pre>
+ *
+ * <p>Files no bigger than a block are zipped several at a time, one file per
+ * thread, and written in order as they finish. Bigger files are zipped one
+ * at a time with their blocks spread over the threads instead. An entry is
+ * found through the directory, so it is unzipped without reading any other.
+ *
+ * @author jeromeli
+ *
+ */
+public class JmzArchive {
+
+  public static final int MAGIC = 0x4A4D5A41;
+  public static final int VERSION = 1;
+
+  /** Size of the archive header. */
+  public static final int HEADER_SIZE = 5;
+
+  /** Size of the fixed fields at the end of the archive. */
+  public static final int TRAILER_SIZE = 12;
+
+  private final int blockSize;
+  private final int parallelism;
+  private final BlockEncoder encoder;
+  private final BlockEncoder entryEncoder;
+
+  /**
+   * Create an archiver, see BlockEncoder for the arguments.
+   *
+   * @param blockSize length of each original block in bytes.
+   * @param parallelism number of files or blocks zipped at the same time.
+   * @param maxCodeLength longest code written.
+   * @param streams 1, or JmzFormat.MAX_STREAMS to split blocks into streams.
+   */
+  public JmzArchive(int blockSize, int parallelism, int maxCodeLength, int streams) {
+    this.encoder = new BlockEncoder(blockSize, parallelism, maxCodeLength, streams);
+    this.entryEncoder = new BlockEncoder(blockSize, 1, maxCodeLength, streams);
+    this.blockSize = blockSize;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * An entry in the directory of an archive.
+   */
+  public static class Entry {
+
+    private final String name;
+    private final long offset;
+    private final long zippedLength;
+    private final long length;
+    private final int checksum;
+
+    private Entry(String name, long offset, long zippedLength, long length, int checksum) {
+      this.name = name;
+      this.offset = offset;
+      this.zippedLength = zippedLength;
+      this.length = length;
+      this.checksum = checksum;
+    }
+
+    /**
+     * Return the name of the file relative to the zipped directory.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Return the offset of the zipped file in the archive.
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Return the length of the zipped file.
+     */
+    public long getZippedLength() {
+      return zippedLength;
+    }
+
+    /**
+     * Return the length of the original file.
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * Return the file checksum of the zipped file, see JmzFormat.
+     */
+    public int getChecksum() {
+      return checksum;
+    }
+
+  }
+
+  /**
+   * zips every regular file under dir, in order of name, into a new archive.
+   * archive is created or replaced.
+   *
+   * @param dir the directory to zip.
+   * @param archive the archive to write.
+   * @return the directory of the archive.
+   * @throws IOException if a file or the archive fails.
+   */
+  public List<Entry> write(Path dir, Path archive) throws IOException {
+    // Leave out the archive itself, if it is being written under dir.
+    Path self = archive.toAbsolutePath().normalize();
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(dir)) {
+      files = walk.filter(file -> Files.isRegularFile(file)
+          && !file.toAbsolutePath().normalize().equals(self))
+          .sorted().collect(Collectors.toList());
+    }
+
+    ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+
+      // DataOutputStream counts in an int, so keep the position here.
+      long position = HEADER_SIZE;
+      List<Entry> entries = new ArrayList<>();
+      ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+      ArrayDeque<String> names = new ArrayDeque<>();
+      int ahead = pool != null ? 2 * parallelism : 1;
+      for (Path file : files) {
+        String name = name(dir, file);
+        if (Files.size(file) > blockSize) {
+          // Spread the blocks over the threads instead of the files.
+          while (!pending.isEmpty()) {
+            position = add(entries, channel, out, names.poll(), position,
+                BlockEncoder.join(pending.poll()));
+          }
+          try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            encoder.compress(in, out);
+          }
+          position = add(entries, channel, out, name, position);
+          continue;
+        }
+
+        Callable<byte[]> task = () -> {
+          ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+          try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            entryEncoder.compress(in, zipped);
+          }
+          return zipped.toByteArray();
+        };
+        pending.add(pool != null ? pool.submit(task)
+            : CompletableFuture.completedFuture(BlockEncoder.call(task)));
+        names.add(name);
+        if (pending.size() == ahead) {
+          position = add(entries, channel, out, names.poll(), position,
+              BlockEncoder.join(pending.poll()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        position = add(entries, channel, out, names.poll(), position,
+            BlockEncoder.join(pending.poll()));
+      }
+
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        out.writeUTF(entry.name);
+        out.writeLong(entry.offset);
+        out.writeLong(entry.zippedLength);
+        out.writeLong(entry.length);
+        out.writeInt(entry.checksum);
+      }
+      out.writeLong(position);
+      out.writeInt(MAGIC);
+      out.flush();
+      return entries;
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * helper method that writes a zipped file at offset and adds its entry.
+   *
+   * @return offset of the end of the entry.
+   */
+  private static long add(List<Entry> entries, FileChannel channel, OutputStream out,
+      String name, long offset, byte[] zipped) throws IOException {
+    out.write(zipped);
+    return add(entries, channel, out, name, offset);
+  }
+
+  /**
+   * helper method that adds the entry for the zipped file written to out
+   * from offset on. Its length and checksum are read back from its own
+   * index, which also checks that it was written whole.
+   *
+   * @return offset of the end of the entry.
+   */
+  private static long add(List<Entry> entries, FileChannel channel, OutputStream out,
+      String name, long offset) throws IOException {
+    out.flush();
+    long end = channel.position();
+    JmzFormat.Index index = JmzFormat.readIndex(channel, offset, end - offset);
+    entries.add(new Entry(name, offset, end - offset, index.getLength(),
+        index.getChecksum()));
+    return end;
+  }
+
+  /**
+   * helper method that returns the name of file relative to dir, with / between
+   * names whatever the file system uses.
+   */
+  private static String name(Path dir, Path file) {
+    List<String> names = new ArrayList<>();
+    for (Path part : dir.relativize(file)) {
+      names.add(part.toString());
+    }
+    return String.join("/", names);
+  }
+
+  /**
+   * reads the directory of an archive without reading any entries.
+   *
+   * @param channel the archive.
+   * @return the entries in the order they were written.
+   * @throws IOException if the archive is damaged.
+   */
+  public static List<Entry> readDirectory(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size < HEADER_SIZE + 4 + TRAILER_SIZE) {
+      throw new IOException("not a jmz archive");
+    }
+    ByteBuffer header = JmzFormat.read(channel, 0, HEADER_SIZE);
+    ByteBuffer trailer = JmzFormat.read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+    long directory = trailer.getLong();
+    if (header.getInt() != MAGIC || trailer.getInt() != MAGIC) {
+      throw new IOException("not a jmz archive");
+    }
+    int version = header.get() & 0xFF;
+    if (version != VERSION) {
+      throw new IOException("unsupported jmz archive version " + version);
+    }
+    if (directory < HEADER_SIZE || size - TRAILER_SIZE - directory < 4
+        || size - TRAILER_SIZE - directory > Integer.MAX_VALUE) {
+      throw new IOException("corrupt jmz archive");
+    }
+
+    DataInput in = JmzFormat.asDataInput(
+        JmzFormat.read(channel, directory, (int) (size - TRAILER_SIZE - directory)));
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("corrupt jmz archive");
+    }
+    List<Entry> entries = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+          in.readInt());
+      if (entry.offset < HEADER_SIZE || entry.zippedLength <= 0 || entry.length < 0
+          || entry.zippedLength > directory - entry.offset) {
+        throw new IOException("corrupt jmz archive");
+      }
+      entries.add(entry);
+    }
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * finds an entry by name.
+   *
+   * @param entries the directory of an archive.
+   * @param name name of the entry.
+   * @return the entry.
+   * @throws IOException if there is no entry with that name.
+   */
+  public static Entry find(List<Entry> entries, String name) throws IOException {
+    for (Entry entry : entries) {
+      if (entry.name.equals(name)) {
+        return entry;
+      }
+    }
+    throw new IOException("no entry " + name);
+  }
+
+  /**
+   * unzips one entry of an archive into out, reading only that entry.
+   *
+   * @param channel the archive.
+   * @param entry the entry, from readDirectory.
+   * @param out the file the original data is written to.
+   * @param decoder decoder to unzip the entry with.
+   * @return length of the original data.
+   * @throws IOException if either file fails or the entry is damaged.
+   */
+  public static long extract(FileChannel channel, Entry entry, Path out,
+      BlockDecoder decoder) throws IOException {
+    return decoder.decompress(channel, entry.offset, entry.zippedLength, out);
+  }
+
+  /**
+   * unzips one entry of an archive to a stream, one block after another.
+   * out is not closed.
+   *
+   * @param channel the archive.
+   * @param entry the entry, from readDirectory.
+   * @param out stream the original data is written to.
+   * @param decoder decoder to unzip the entry with.
+   * @return length of the original data.
+   * @throws IOException if either fails or the entry is damaged.
+   */
+  public static long extract(FileChannel channel, Entry entry, OutputStream out,
+      BlockDecoder decoder) throws IOException {
+    channel.position(entry.offset);
+    return decoder.decompress(new BufferedInputStream(Channels.newInputStream(channel)), out);
+  }
+
+  /**
+   * unzips every entry of an archive under dir, creating directories as
+   * needed. An entry whose name would put it outside dir is refused.
+   *
+   * @param archive the archive.
+   * @param dir the directory to unzip into.
+   * @param decoder decoder to unzip the entries with.
+   * @return the directory of the archive.
+   * @throws IOException if a file fails or the archive is damaged.
+   */
+  public static List<Entry> extractAll(Path archive, Path dir, BlockDecoder decoder)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+      List<Entry> entries = readDirectory(channel);
+      Path root = dir.toAbsolutePath().normalize();
+      for (Entry entry : entries) {
+        Path out = root.resolve(entry.name).normalize();
+        if (!out.startsWith(root) || out.equals(root)) {
+          throw new IOException("bad entry name " + entry.name);
+        }
+        Files.createDirectories(out.getParent());
+        extract(channel, entry, out, decoder);
+      }
+      return entries;
+    }
+  }
+
+  /**
+   * checks whether a stream holds an archive, without consuming anything.
+   *
+   * @param in stream positioned at the start of the file, must support mark.
+   * @return true for an archive.
+   * @throws IOException ioexception.
+   */
+  public static boolean isArchive(InputStream in) throws IOException {
+    in.mark(4);
+    int magic = 0;
+    for (int i = 0; i < 4; i++) {
+      magic = magic << 8 | (in.read() & 0xFF);
+    }
+    in.reset();
+    return magic == MAGIC;
+  }
+
+}
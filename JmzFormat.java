@@ -0,0 +1,792 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and writes the layout of a zipped file. All numbers are written with
+ * DataOutput, so they are big endian.
+ *
+ * <pre>
+ *   int     magic, the bytes 'J' 'M' 'Z' 0x1A
+ *   byte    format version
+ *   int     block size
+ *   then for each block
+ *     int     length of the original block, never 0
+ *     byte    block type, HUFFMAN 0, STORED 1 or RUN 2
+ *     int     CRC32C of the original block
+ *     for a stored block
+ *       the original bytes
+ *     for a run block
+ *       byte    the one byte value the block is made of
+ *     for a Huffman block
+ *       short   number of distinct bytes n
+ *       n times byte value, byte code length
+ *       byte    number of streams s, 1 or 4
+ *       s - 1 times int length of a stream in bytes, all but the last
+ *       int     length of the packed bits in bytes, all streams together
+ *       the streams, packed bits of the canonical code, first bit in the
+ *       lowest position
+ *   int     0, marks the end of the blocks
+ *   int     number of blocks
+ *   then for each block
+ *     long    offset of the block from the start of the file
+ *     int     length of the original block
+ *   long    length of the original file
+ *   int     file checksum, the CRC32C of the block checksums in order
+ *   long    offset of the block count from the start of the file
+ * </pre>
+ *
+ * <p>The input is cut into blocks of block size bytes, only the last block may
+ * be shorter. Each block has its own code, so blocks can be encoded and decoded
+ * independently. A block that coding would not make smaller is stored as it is,
+ * and a block of a single byte value is stored as a run. Only code lengths are
+ * stored, both sides build the same HuffCodebook from them. A block with 4
+ * streams is cut into 4 segments of segmentLength bytes, the last one shorter,
+ * and each segment is packed into a stream of its own. The lengths of the first
+ * streams are a jump table to the start of each, so a decoder can work on all 4
+ * in the same loop: the bit position of one never waits on another. Each stream
+ * is padded with 0's to a whole byte. The index after the blocks lets a reader
+ * with random access find any block, and where its bytes go in the original
+ * file, without reading the ones before it. That is what lets BlockDecoder
+ * decode blocks in parallel. The checksum of each block lets a decoder check
+ * it as soon as it is decoded, and the file checksum covers the checksum of
+ * every block, so a block that is missing or out of place is caught too, all
+ * without hashing anything twice.
+ *
+ * <p>Older versions of JMZip wrote a serialized HuffmanSave instead. Those
+ * files can still be opened with readLegacy.
+ *
+ * @author jeromeli
+ *
+ */
+public class JmzFormat {
+
+  public static final int MAGIC = 0x4A4D5A1A;
+  public static final int VERSION = 6;
+
+  /** Block type of a block packed with its own Huffman code. */
+  public static final int HUFFMAN = 0;
+
+  /** Block type of a block kept as it is. */
+  public static final int STORED = 1;
+
+  /** Block type of a block that repeats one byte value. */
+  public static final int RUN = 2;
+
+  /** Size of the header of a stored block. */
+  public static final int STORED_HEADER_SIZE = 9;
+
+  /** Most streams a block can be split into. */
+  public static final int MAX_STREAMS = 4;
+
+  /** Size of the magic number, version and block size. */
+  public static final int HEADER_SIZE = 9;
+
+  /** Size of the fixed fields at the end of the file. */
+  public static final int TRAILER_SIZE = 20;
+
+  /** Size of the end marker, block count and trailer. */
+  public static final int END_SIZE = 8 + TRAILER_SIZE;
+
+  /** Most bytes a block header takes. */
+  private static final int MAX_BLOCK_HEADER = 16 + 2 * 256 + 4 * (MAX_STREAMS - 1);
+
+  /**
+   * Most bytes a block adds to its original length, with its index entry.
+   * BlockEncoder stores a block whenever coding would not make it smaller.
+   */
+  public static final int MAX_BLOCK_OVERHEAD = STORED_HEADER_SIZE + 12;
+
+  /** First two bytes of every Java serialization stream. */
+  private static final int STREAM_MAGIC = 0xACED;
+
+  /**
+   * Only the classes a HuffmanSave is made of may be deserialized, and only as
+   * many and as large as a HuffmanSave can hold: a bit sequence of at most
+   * 2^31 - 1 bits, so 2^28 bytes, and a map of at most 256 Byte and Integer
+   * pairs, so a handful of objects past those 512. A crafted file is turned
+   * down before it can allocate more.
+   */
+  private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config
+      .createFilter("HuffmanSave;BitSequence;java.util.HashMap;java.util.Map$Entry;"
+          + "java.lang.Byte;java.lang.Integer;java.lang.Number;maxdepth=4;"
+          + "maxarray=268435456;maxrefs=1024;maxbytes=268500992;!*");
+
+  /**
+   * Header of one block.
+   */
+  public static class BlockHeader {
+
+    private final int length;
+    private final int type;
+    private final int checksum;
+    private final HuffCodebook codebook;
+    private final int[] streamLengths;
+    private final int payloadLength;
+
+    private BlockHeader(int length, int type, int checksum, HuffCodebook codebook,
+        int[] streamLengths, int payloadLength) {
+      this.length = length;
+      this.type = type;
+      this.checksum = checksum;
+      this.codebook = codebook;
+      this.streamLengths = streamLengths;
+      this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Return the length of the original block.
+     */
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Return the block type, HUFFMAN, STORED or RUN.
+     */
+    public int getType() {
+      return type;
+    }
+
+    /**
+     * Return the CRC32C of the original block.
+     */
+    public int getChecksum() {
+      return checksum;
+    }
+
+    /**
+     * Return the codebook the bits were written with, null for a stored
+     * block. A run block has a codebook with just its byte.
+     */
+    public HuffCodebook getCodebook() {
+      return codebook;
+    }
+
+    /**
+     * Return the length of the packed bits in bytes, or of the original
+     * bytes of a stored block.
+     */
+    public int getPayloadLength() {
+      return payloadLength;
+    }
+
+    /**
+     * Return the number of streams the bits are split into, 1 or 4.
+     */
+    public int getStreamCount() {
+      return streamLengths.length;
+    }
+
+    /**
+     * splits the packed bits into the bytes of each stream, without copying
+     * them. Each buffer reads little endian, the same order bits are packed
+     * in.
+     *
+     * @param payload the packed bits from its position on.
+     * @return one buffer for each stream, in order.
+     */
+    public ByteBuffer[] streams(ByteBuffer payload) {
+      ByteBuffer[] streams = new ByteBuffer[streamLengths.length];
+      int position = payload.position();
+      for (int i = 0; i < streams.length; i++) {
+        streams[i] = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        streams[i].limit(position + streamLengths[i]);
+        streams[i].position(position);
+        position += streamLengths[i];
+      }
+      return streams;
+    }
+
+  }
+
+  /**
+   * writes the file header.
+   *
+   * @param out where to write it.
+   * @param blockSize length of every original block but the last.
+   * @throws IOException ioexception.
+   */
+  public static void writeHeader(DataOutput out, int blockSize) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeInt(blockSize);
+  }
+
+  /**
+   * reads and checks the file header.
+   *
+   * @param in where to read it from.
+   * @return the block size.
+   * @throws IOException if the header is missing, damaged or from an unknown
+   *         version.
+   */
+  public static int readHeader(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not a jmz file");
+    }
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("unsupported jmz version " + version);
+    }
+    int blockSize = in.readInt();
+    if (blockSize <= 0) {
+      throw new IOException("corrupt jmz header");
+    }
+    return blockSize;
+  }
+
+  /**
+   * returns the length of each segment of a block split into streams, all
+   * but the last segment have this length.
+   *
+   * @param length length of the original block.
+   * @param streams number of streams.
+   * @return segment length.
+   */
+  public static int segmentLength(int length, int streams) {
+    return (length + streams - 1) / streams;
+  }
+
+  /**
+   * returns the length of the header writeBlockHeader writes.
+   *
+   * @param symbolCount number of bytes in the codebook.
+   * @param streams number of streams.
+   * @return header length in bytes.
+   */
+  public static int blockHeaderLength(int symbolCount, int streams) {
+    return 16 + 2 * symbolCount + 4 * (streams - 1);
+  }
+
+  /**
+   * writes the header of a stored block, the original bytes go right after
+   * it.
+   *
+   * @param out where to write it.
+   * @param length length of the original block.
+   * @param checksum CRC32C of the original block.
+   * @return number of bytes written.
+   * @throws IOException ioexception.
+   */
+  public static int writeStoredBlockHeader(DataOutput out, int length, int checksum)
+      throws IOException {
+    out.writeInt(length);
+    out.writeByte(STORED);
+    out.writeInt(checksum);
+    return STORED_HEADER_SIZE;
+  }
+
+  /**
+   * writes a run block, which is all header.
+   *
+   * @param out where to write it.
+   * @param length length of the original block.
+   * @param checksum CRC32C of the original block.
+   * @param value unsigned byte value the block repeats.
+   * @return number of bytes written.
+   * @throws IOException ioexception.
+   */
+  public static int writeRunBlock(DataOutput out, int length, int checksum, int value)
+      throws IOException {
+    out.writeInt(length);
+    out.writeByte(RUN);
+    out.writeInt(checksum);
+    out.writeByte(value);
+    return 10;
+  }
+
+  /**
+   * writes the header of a Huffman block, the streams go right after it.
+   *
+   * @param out where to write it.
+   * @param length length of the original block.
+   * @param checksum CRC32C of the original block.
+   * @param codebook codebook the bits are written with.
+   * @param streamLengths length of each stream in bytes, 1 or 4 of them.
+   * @return number of bytes written.
+   * @throws IOException ioexception.
+   */
+  public static int writeBlockHeader(DataOutput out, int length, int checksum,
+      HuffCodebook codebook, int[] streamLengths) throws IOException {
+    out.writeInt(length);
+    out.writeByte(HUFFMAN);
+    out.writeInt(checksum);
+    out.writeShort(codebook.symbolCount());
+    for (int b = 0; b < 256; b++) {
+      if (codebook.length(b) != 0) {
+        out.writeByte(b);
+        out.writeByte(codebook.length(b));
+      }
+    }
+    out.writeByte(streamLengths.length);
+    int payloadLength = 0;
+    for (int i = 0; i < streamLengths.length - 1; i++) {
+      out.writeInt(streamLengths[i]);
+      payloadLength += streamLengths[i];
+    }
+    out.writeInt(payloadLength + streamLengths[streamLengths.length - 1]);
+    return blockHeaderLength(codebook.symbolCount(), streamLengths.length);
+  }
+
+  /**
+   * reads and checks the header of a block.
+   *
+   * @param in where to read it from.
+   * @param blockSize block size from the file header.
+   * @return the header, or null at the end of the blocks.
+   * @throws IOException if the header is missing or damaged.
+   */
+  public static BlockHeader readBlockHeader(DataInput in, int blockSize)
+      throws IOException {
+    int length = in.readInt();
+    if (length == 0) {
+      return null;
+    }
+    if (length < 0 || length > blockSize) {
+      throw new IOException("corrupt jmz block");
+    }
+
+    int type = in.readUnsignedByte();
+    int checksum = in.readInt();
+    if (type == STORED) {
+      return new BlockHeader(length, type, checksum, null, new int[] {length}, length);
+    } else if (type == RUN) {
+      int[] runLengths = new int[256];
+      runLengths[in.readUnsignedByte()] = 1;
+      return new BlockHeader(length, type, checksum, CodebookCache.shared().get(runLengths),
+          new int[1], 0);
+    } else if (type != HUFFMAN) {
+      throw new IOException("corrupt jmz block");
+    }
+
+    int count = in.readUnsignedShort();
+    if (count == 0 || count > 256) {
+      throw new IOException("corrupt jmz block");
+    }
+
+    int[] codeLengths = new int[256];
+    for (int i = 0; i < count; i++) {
+      int b = in.readUnsignedByte();
+      int codeLength = in.readUnsignedByte();
+      if (codeLength == 0 || codeLengths[b] != 0) {
+        throw new IOException("corrupt jmz block");
+      }
+      codeLengths[b] = codeLength;
+    }
+
+    int streams = in.readUnsignedByte();
+    if (streams != 1 && streams != MAX_STREAMS) {
+      throw new IOException("corrupt jmz block");
+    }
+    int[] streamLengths = new int[streams];
+    long start = 0;
+    for (int i = 0; i < streams - 1; i++) {
+      streamLengths[i] = in.readInt();
+      start += streamLengths[i];
+      if (streamLengths[i] < 0) {
+        throw new IOException("corrupt jmz block");
+      }
+    }
+
+    int payloadLength = in.readInt();
+    if (payloadLength < start
+        || payloadLength > (long) length * HuffCodebook.MAX_CODE_LENGTH / 8 + streams) {
+      throw new IOException("corrupt jmz block");
+    }
+    streamLengths[streams - 1] = (int) (payloadLength - start);
+
+    try {
+      return new BlockHeader(length, type, checksum, CodebookCache.shared().get(codeLengths),
+          streamLengths, payloadLength);
+    } catch (IllegalArgumentException iae) {
+      throw new IOException("corrupt jmz block", iae);
+    }
+  }
+
+  /**
+   * writes the end marker, the block index and the trailer.
+   *
+   * @param out where to write them.
+   * @param position offset of out from the start of the file.
+   * @param offsets offset of each block from the start of the file.
+   * @param lengths length of each original block.
+   * @param count number of blocks.
+   * @param checksum file checksum, see addBlockChecksum.
+   * @throws IOException ioexception.
+   */
+  public static void writeEnd(DataOutput out, long position, long[] offsets, int[] lengths,
+      int count, int checksum) throws IOException {
+    long length = 0;
+    out.writeInt(0);
+    out.writeInt(count);
+    for (int i = 0; i < count; i++) {
+      out.writeLong(offsets[i]);
+      out.writeInt(lengths[i]);
+      length += lengths[i];
+    }
+    out.writeLong(length);
+    out.writeInt(checksum);
+    out.writeLong(position + 4);
+  }
+
+  /**
+   * reads the block index and the trailer that follow the end marker and
+   * checks them against what the blocks before them added up to.
+   *
+   * @param in where to read them from.
+   * @param length length of the blocks read.
+   * @param checksum file checksum of the blocks read, see addBlockChecksum.
+   * @throws IOException if they are missing, damaged or do not match.
+   */
+  public static void readEnd(DataInput in, long length, int checksum) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("corrupt jmz index");
+    }
+    long sum = 0;
+    for (int i = 0; i < count; i++) {
+      in.readLong();
+      sum += in.readInt();
+    }
+    if (in.readLong() != sum || sum != length) {
+      throw new IOException("corrupt jmz index");
+    }
+    if (in.readInt() != checksum) {
+      throw new IOException("jmz file checksum does not match");
+    }
+    in.readLong();
+  }
+
+  /**
+   * returns the CRC32C of the bytes from the position to the limit of a
+   * buffer, without moving its position.
+   *
+   * @param bytes the bytes.
+   * @return the checksum.
+   */
+  public static int checksum(ByteBuffer bytes) {
+    CRC32C crc = new CRC32C();
+    crc.update(bytes.duplicate());
+    return (int) crc.getValue();
+  }
+
+  /**
+   * adds the checksum of the next block to a file checksum.
+   *
+   * @param file running CRC32C of the block checksums so far.
+   * @param blockChecksum checksum of the next block.
+   */
+  public static void addBlockChecksum(CRC32C file, int blockChecksum) {
+    file.update(blockChecksum >>> 24);
+    file.update(blockChecksum >>> 16);
+    file.update(blockChecksum >>> 8);
+    file.update(blockChecksum);
+  }
+
+  /**
+   * Block index of a zipped file.
+   */
+  public static class Index {
+
+    private final int blockSize;
+    private final long[] offsets;
+    private final long[] positions;
+    private final long end;
+    private final int checksum;
+
+    private Index(int blockSize, long[] offsets, long[] positions, long end, int checksum) {
+      this.blockSize = blockSize;
+      this.offsets = offsets;
+      this.positions = positions;
+      this.end = end;
+      this.checksum = checksum;
+    }
+
+    /**
+     * Return the block size from the file header.
+     */
+    public int getBlockSize() {
+      return blockSize;
+    }
+
+    /**
+     * Return the number of blocks.
+     */
+    public int getBlockCount() {
+      return offsets.length;
+    }
+
+    /**
+     * Return the offset of a block in the channel the index was read from.
+     */
+    public long getOffset(int block) {
+      return offsets[block];
+    }
+
+    /**
+     * Return the length of a block in the zipped file, header included.
+     */
+    public int getZippedLength(int block) {
+      return (int) ((block + 1 < offsets.length ? offsets[block + 1] : end) - offsets[block]);
+    }
+
+    /**
+     * Return the offset of a block in the original file.
+     */
+    public long getPosition(int block) {
+      return positions[block];
+    }
+
+    /**
+     * Return the length of a block in the original file.
+     */
+    public int getLength(int block) {
+      return (int) (positions[block + 1] - positions[block]);
+    }
+
+    /**
+     * Return the length of the original file.
+     */
+    public long getLength() {
+      return positions[offsets.length];
+    }
+
+    /**
+     * Return the block that holds a byte of the original file.
+     *
+     * @param position offset in the original file, 0 to getLength() - 1.
+     */
+    public int findBlock(long position) {
+      int block = Arrays.binarySearch(positions, position);
+      return block >= 0 ? block : -block - 2;
+    }
+
+    /**
+     * Return the file checksum, see addBlockChecksum.
+     */
+    public int getChecksum() {
+      return checksum;
+    }
+
+  }
+
+  /**
+   * reads the file header, the block index and the trailer of a zipped file
+   * without reading any blocks.
+   *
+   * @param channel the zipped file.
+   * @return the index.
+   * @throws IOException if the file is damaged.
+   */
+  public static Index readIndex(FileChannel channel) throws IOException {
+    return readIndex(channel, 0, channel.size());
+  }
+
+  /**
+   * reads the file header, the block index and the trailer of a zipped file
+   * that takes up part of a channel, such as an entry of a JmzArchive. The
+   * offsets in the index are moved to count from the start of the channel.
+   *
+   * @param channel the channel holding the zipped file.
+   * @param start offset of the zipped file in channel.
+   * @param size length of the zipped file.
+   * @return the index.
+   * @throws IOException if the file is damaged.
+   */
+  public static Index readIndex(FileChannel channel, long start, long size)
+      throws IOException {
+    DataInput header = new DataInputStream(
+        new ByteArrayInputStream(read(channel, start, HEADER_SIZE).array()));
+    int blockSize = readHeader(header);
+
+    if (size < HEADER_SIZE + END_SIZE) {
+      throw new IOException("corrupt jmz index");
+    }
+    ByteBuffer trailer = read(channel, start + size - TRAILER_SIZE, TRAILER_SIZE);
+    long length = trailer.getLong();
+    int checksum = trailer.getInt();
+    long indexOffset = trailer.getLong();
+    if (indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE - 4) {
+      throw new IOException("corrupt jmz index");
+    }
+
+    ByteBuffer index = read(channel, start + indexOffset,
+        (int) (size - TRAILER_SIZE - indexOffset));
+    int count = index.getInt();
+    if (count < 0 || index.remaining() != count * 12L) {
+      throw new IOException("corrupt jmz index");
+    }
+
+    // The end marker sits right before the index.
+    long end = start + indexOffset - 4;
+    long maxZipped = MAX_BLOCK_HEADER
+        + (long) blockSize * HuffCodebook.MAX_CODE_LENGTH / 8 + MAX_STREAMS;
+
+    long[] offsets = new long[count];
+    long[] positions = new long[count + 1];
+    for (int i = 0; i < count; i++) {
+      offsets[i] = start + index.getLong();
+      int blockLength = index.getInt();
+      if (blockLength <= 0 || blockLength > blockSize) {
+        throw new IOException("corrupt jmz index");
+      }
+      positions[i + 1] = positions[i] + blockLength;
+    }
+    for (int i = 0; i < count; i++) {
+      long zipped = (i + 1 < count ? offsets[i + 1] : end) - offsets[i];
+      if (offsets[i] < start + HEADER_SIZE || zipped <= 0 || zipped > maxZipped) {
+        throw new IOException("corrupt jmz index");
+      }
+    }
+    if (positions[count] != length) {
+      throw new IOException("corrupt jmz index");
+    }
+
+    return new Index(blockSize, offsets, positions, end, checksum);
+  }
+
+  /**
+   * Read the bytes from the position of buf on as a DataInput, moving the
+   * position along without copying the bytes.
+   *
+   * @param buf buffer to read, for example a mapped part of a file.
+   * @return the data input.
+   */
+  static DataInput asDataInput(ByteBuffer buf) {
+    return new DataInputStream(new InputStream() {
+      @Override
+      public int read() {
+        return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+        if (!buf.hasRemaining()) {
+          return -1;
+        }
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+      }
+    });
+  }
+
+  /**
+   * Write to buf as an OutputStream, moving its position along.
+   *
+   * @param buf buffer to write to.
+   * @return the stream, which throws BufferOverflowException once buf is
+   *         full.
+   */
+  static OutputStream asOutputStream(ByteBuffer buf) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {
+        buf.put((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        buf.put(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * reads length bytes at position from channel.
+   */
+  static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    if (position < 0 || length < 0) {
+      throw new IOException("corrupt jmz file");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    readFully(channel, buffer, position);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * fills dst from its position to its limit with the bytes at position in
+   * channel, without moving the position of channel, so several threads can
+   * read the same channel at once.
+   */
+  static void readFully(FileChannel channel, ByteBuffer dst, long position)
+      throws IOException {
+    long start = position - dst.position();
+    while (dst.hasRemaining()) {
+      if (channel.read(dst, start + dst.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  /**
+   * writes src from its position to its limit at position in channel,
+   * without moving the position of channel.
+   */
+  static void writeFully(FileChannel channel, ByteBuffer src, long position)
+      throws IOException {
+    long start = position - src.position();
+    while (src.hasRemaining()) {
+      channel.write(src, start + src.position());
+    }
+  }
+
+  /**
+   * checks whether a stream holds a serialized HuffmanSave, without consuming
+   * anything.
+   *
+   * @param in stream positioned at the start of the file, must support mark.
+   * @return true for files written by older versions of JMZip.
+   * @throws IOException ioexception.
+   */
+  public static boolean isLegacy(InputStream in) throws IOException {
+    in.mark(2);
+    int first = in.read();
+    int second = in.read();
+    in.reset();
+    return (first << 8 | second) == STREAM_MAGIC;
+  }
+
+  /**
+   * reads a serialized HuffmanSave. Only the classes a HuffmanSave is made of
+   * are accepted, and only up to the sizes a HuffmanSave can have, so a
+   * crafted file can neither instantiate anything else nor fill the heap.
+   *
+   * @param in stream positioned at the start of the file.
+   * @return the saved encoding and frequencies.
+   * @throws IOException if the file is damaged or holds anything else.
+   */
+  public static HuffmanSave readLegacy(InputStream in) throws IOException {
+    ObjectInputStream objIn = new ObjectInputStream(in);
+    objIn.setObjectInputFilter(LEGACY_FILTER);
+    HuffmanSave save;
+    try {
+      save = (HuffmanSave) objIn.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("not a jmz file", e);
+    }
+    if (save == null || save.getEncoding() == null || save.getFrequencies() == null) {
+      throw new IOException("not a jmz file");
+    }
+    return save;
+  }
+
+}
@@ -0,0 +1,181 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads any range of bytes of the original file straight from a zipped file.
+ * The block index is the sync point table: it gives the original offset of
+ * every block and where the block starts in the zipped file, so a read only
+ * reads and decodes the blocks its range touches. A block split into four
+ * streams holds four segments that each start at a known byte, so only the
+ * segments in range are decoded, and each only up to the end of the range.
+ * A read then costs about the range plus at most a block, or a quarter of a
+ * block with four streams, whatever the size of the file; zip with a smaller
+ * block size for finer sync points. A stored block is copied without
+ * decoding at all.
+ *
+ * <p>Part of a block cannot be checked against the block checksum, so reads
+ * are not checked; use BlockDecoder to check a whole file. A zipped block is
+ * read into a spare array that the next read uses again. Apart from those a
+ * reader keeps no state between reads, so any number of threads can share
+ * one.
+ *
+ * @author jeromeli
+ *
+ */
+public class JmzReader implements Closeable {
+
+  private final FileChannel channel;
+  private final boolean owner;
+  private final JmzFormat.Index index;
+  private final Queue<byte[]> spare = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Open a zipped file for reading.
+   *
+   * @param file the zipped file.
+   * @throws IOException if the file fails or is damaged.
+   */
+  public JmzReader(Path file) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.owner = true;
+    try {
+      this.index = JmzFormat.readIndex(channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Read a zipped file that takes up part of a channel, such as an entry of a
+   * JmzArchive. Closing the reader does not close the channel.
+   *
+   * @param channel channel holding the zipped file.
+   * @param start offset of the zipped file in channel.
+   * @param size length of the zipped file.
+   * @throws IOException if the channel fails or the file is damaged.
+   */
+  public JmzReader(FileChannel channel, long start, long size) throws IOException {
+    this.channel = channel;
+    this.owner = false;
+    this.index = JmzFormat.readIndex(channel, start, size);
+  }
+
+  /**
+   * Return the length of the original file.
+   */
+  public long length() {
+    return index.getLength();
+  }
+
+  /**
+   * reads dst.length bytes of the original file from offset on, fewer if the
+   * file ends first.
+   *
+   * @param offset offset in the original file.
+   * @param dst array the bytes are put in.
+   * @return number of bytes read, -1 if offset is at or past the end.
+   * @throws IOException if the file fails or the block is damaged.
+   */
+  public int read(long offset, byte[] dst) throws IOException {
+    return read(offset, dst, 0, dst.length);
+  }
+
+  /**
+   * reads len bytes of the original file from offset on into part of an
+   * array, fewer if the file ends first.
+   *
+   * @param offset offset in the original file.
+   * @param dst array the bytes are put in.
+   * @param off index in dst of the first byte.
+   * @param len number of bytes to read.
+   * @return number of bytes read, -1 if offset is at or past the end.
+   * @throws IOException if the file fails or the block is damaged.
+   */
+  public int read(long offset, byte[] dst, int off, int len) throws IOException {
+    if (offset < 0 || off < 0 || len < 0 || len > dst.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (offset >= index.getLength()) {
+      return -1;
+    }
+    len = (int) Math.min(len, index.getLength() - offset);
+
+    int done = 0;
+    for (int block = index.findBlock(offset); done < len; block++) {
+      int from = (int) (offset + done - index.getPosition(block));
+      int count = Math.min(len - done, index.getLength(block) - from);
+      readBlock(block, from, dst, off + done, count);
+      done += count;
+    }
+    return len;
+  }
+
+  /**
+   * helper method that reads count bytes of a block from offset from on.
+   */
+  private void readBlock(int block, int from, byte[] dst, int off, int count)
+      throws IOException {
+    byte[] zipped = BlockDecoder.take(spare, index.getZippedLength(block),
+        (int) Math.min(index.getBlockSize(), index.getLength()) + JmzFormat.MAX_BLOCK_OVERHEAD);
+    try {
+      decodeBlock(block, ByteBuffer.wrap(zipped, 0, index.getZippedLength(block)), from, dst,
+          off, count);
+    } finally {
+      spare.offer(zipped);
+    }
+  }
+
+  /**
+   * helper method that reads a zipped block into bytes and decodes count
+   * bytes of it from offset from on.
+   */
+  private void decodeBlock(int block, ByteBuffer bytes, int from, byte[] dst, int off,
+      int count) throws IOException {
+    JmzFormat.readFully(channel, bytes, index.getOffset(block));
+    bytes.flip();
+    JmzFormat.BlockHeader header =
+        JmzFormat.readBlockHeader(JmzFormat.asDataInput(bytes), index.getBlockSize());
+    if (header == null || header.getLength() != index.getLength(block)
+        || header.getPayloadLength() > bytes.remaining()) {
+      throw new IOException("corrupt jmz block");
+    }
+    bytes.limit(bytes.position() + header.getPayloadLength());
+
+    if (header.getType() == JmzFormat.STORED) {
+      bytes.position(bytes.position() + from);
+      bytes.get(dst, off, count);
+      return;
+    }
+
+    ByteBuffer[] streams = header.streams(bytes);
+    int segment = JmzFormat.segmentLength(header.getLength(), streams.length);
+    for (int s = from / segment; s < streams.length && s * segment < from + count; s++) {
+      int start = Math.max(from, s * segment);
+      int end = Math.min(from + count, (s + 1) * segment);
+      // Decode and drop what comes before the range in this segment.
+      BitInputStream in = new BitInputStream(streams[s]);
+      BuildHuffTree.skip(header.getCodebook(), in, start - s * segment);
+      BuildHuffTree.decode(header.getCodebook(), in, dst, off + start - from, end - start);
+    }
+  }
+
+  /**
+   * closes the zipped file, if this reader opened it.
+   *
+   * @throws IOException ioexception.
+   */
+  @Override
+  public void close() throws IOException {
+    if (owner) {
+      channel.close();
+    }
+  }
+
+}
@@ -0,0 +1,299 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Codebook trained ahead of time on sample data and loaded by both ends, for
+ * messages too small to carry their own code lengths. A zipped message names
+ * its codebook by id instead, so its header is a few bytes, and nothing is
+ * counted or built per message: the codes and the decoding table are made
+ * once, when the codebook is trained or read. A message is laid out as
+ *
+ * <pre>
+ *   byte    JmzFormat.HUFFMAN, or JmzFormat.STORED if coding would not help
+ *   int     id of the codebook
+ *   varint  length of the message, 7 bits a byte, low bits first, high bit
+ *           set on every byte but the last
+ *   then the packed bits, or the message as it is
+ * </pre>
+ *
+ * <p>Every byte value gets a code, even ones the samples never had, so any
+ * message can be zipped. The id is the CRC32C of the code lengths, so two
+ * codebooks trained from the same samples have the same id, and a message
+ * is never unzipped with the wrong one. A codebook keeps no state between
+ * calls and can be shared by any number of threads.
+ *
+ * <p>Usage: {@code java SharedCodebook <codebook file> <sample file>...}
+ * trains a codebook on the samples and writes it to the codebook file.
+ *
+ * @author jeromeli
+ *
+ */
+public final class SharedCodebook {
+
+  /** Magic number at the start of a codebook file. */
+  public static final int MAGIC = 0x4A4D5A43;
+
+  /** Most bytes a message header takes. */
+  public static final int MAX_HEADER_SIZE = 10;
+
+  private final int id;
+  private final HuffCodebook codebook;
+  private final HuffDecodeTable decodeTable;
+
+  /**
+   * Private constructor, use train or read.
+   */
+  private SharedCodebook(HuffCodebook codebook) {
+    if (codebook.symbolCount() != 256) {
+      throw new IllegalArgumentException("a shared codebook needs a code for every byte");
+    }
+    this.codebook = codebook;
+    this.decodeTable = codebook.decodeTable();
+    ByteBuffer lengths = ByteBuffer.allocate(256);
+    for (int b = 0; b < 256; b++) {
+      lengths.put((byte) codebook.length(b));
+    }
+    lengths.flip();
+    this.id = JmzFormat.checksum(lengths);
+  }
+
+  /**
+   * trains a codebook on byte counts, adding one to each count so that every
+   * byte has a code.
+   *
+   * @param freq count of each unsigned byte value in the samples.
+   * @param maxLength longest code allowed, 8 to HuffCodebook.MAX_CODE_LENGTH.
+   * @return the codebook.
+   */
+  public static SharedCodebook train(long[] freq, int maxLength) {
+    long[] counts = new long[256];
+    for (int b = 0; b < 256; b++) {
+      counts[b] = Math.addExact(freq[b], 1);
+    }
+    return new SharedCodebook(HuffCodebook.fromFrequencies(counts, maxLength));
+  }
+
+  /**
+   * trains a codebook on sample files, with codes of up to
+   * BlockEncoder.DEFAULT_MAX_CODE_LENGTH bits so every code decodes in one
+   * lookup.
+   *
+   * @param samples the sample files.
+   * @return the codebook.
+   * @throws IOException if a file fails.
+   */
+  public static SharedCodebook train(List<Path> samples) throws IOException {
+    long[] freq = new long[256];
+    for (Path sample : samples) {
+      try (InputStream in = Files.newInputStream(sample)) {
+        long[] counts = BuildHuffTree.countFreq(in);
+        for (int b = 0; b < 256; b++) {
+          freq[b] += counts[b];
+        }
+      }
+    }
+    return train(freq, BlockEncoder.DEFAULT_MAX_CODE_LENGTH);
+  }
+
+  /**
+   * Return the id that zipped messages name this codebook by.
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Return the codes.
+   */
+  public HuffCodebook getCodebook() {
+    return codebook;
+  }
+
+  /**
+   * zips a message.
+   *
+   * @param message the message.
+   * @return the zipped message.
+   */
+  public byte[] compress(byte[] message) {
+    return compress(message, 0, message.length);
+  }
+
+  /**
+   * zips part of an array as one message.
+   *
+   * @param message array holding the message.
+   * @param off index of the first byte of the message.
+   * @param len length of the message.
+   * @return the zipped message.
+   * @throws IllegalArgumentException if the message could code to more bytes
+   *         than an array holds.
+   */
+  public byte[] compress(byte[] message, int off, int len) {
+    long size = MAX_HEADER_SIZE + ((long) len * codebook.maxLength() + 7) / 8;
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("message too long for a shared codebook");
+    }
+    byte[] zipped = new byte[(int) size];
+    int start = writeHeader(zipped, JmzFormat.HUFFMAN, len);
+    int end = BuildHuffTree.encode(codebook, message, off, len, zipped, start);
+    if (end - start >= len) {
+      start = writeHeader(zipped, JmzFormat.STORED, len);
+      System.arraycopy(message, off, zipped, start, len);
+      end = start + len;
+    }
+    return Arrays.copyOf(zipped, end);
+  }
+
+  /**
+   * helper method that writes the message header at the start of zipped.
+   *
+   * @return index of the first byte after it.
+   */
+  private int writeHeader(byte[] zipped, int type, int len) {
+    zipped[0] = (byte) type;
+    zipped[1] = (byte) (id >>> 24);
+    zipped[2] = (byte) (id >>> 16);
+    zipped[3] = (byte) (id >>> 8);
+    zipped[4] = (byte) id;
+    int pos = 5;
+    for (; len >= 0x80; len >>>= 7) {
+      zipped[pos++] = (byte) (len | 0x80);
+    }
+    zipped[pos++] = (byte) len;
+    return pos;
+  }
+
+  /**
+   * returns the id of the codebook a message was zipped with, so the right
+   * one can be picked among several.
+   *
+   * @param zipped the zipped message.
+   * @return the id.
+   * @throws IOException if zipped is too short to be a message.
+   */
+  public static int id(byte[] zipped) throws IOException {
+    if (zipped.length < 6) {
+      throw new IOException("corrupt jmz message");
+    }
+    return ByteBuffer.wrap(zipped, 1, 4).getInt();
+  }
+
+  /**
+   * unzips a message zipped with this codebook.
+   *
+   * @param zipped the zipped message.
+   * @return the message.
+   * @throws IOException if the message was zipped with another codebook or
+   *         is damaged.
+   */
+  public byte[] decompress(byte[] zipped) throws IOException {
+    if (id(zipped) != id) {
+      throw new IOException("jmz message was zipped with another codebook");
+    }
+    int type = zipped[0];
+    int pos = 5;
+    long len = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (pos == zipped.length || shift > 28) {
+        throw new IOException("corrupt jmz message");
+      }
+      int b = zipped[pos++];
+      len |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+
+    int rest = zipped.length - pos;
+    if (type == JmzFormat.STORED && len == rest) {
+      return Arrays.copyOfRange(zipped, pos, zipped.length);
+    }
+    // Every code is at least one bit.
+    if (type != JmzFormat.HUFFMAN || len > 8L * rest || len > Integer.MAX_VALUE - 8) {
+      throw new IOException("corrupt jmz message");
+    }
+    byte[] message = new byte[(int) len];
+    decodeTable.decode(new BitInputStream(ByteBuffer.wrap(zipped, pos, rest)), message, 0,
+        message.length);
+    return message;
+  }
+
+  /**
+   * writes the codebook, as its magic number and the code length of every
+   * byte. out is not closed.
+   *
+   * @param out where to write it.
+   * @throws IOException ioexception.
+   */
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(MAGIC);
+    for (int b = 0; b < 256; b++) {
+      dataOut.writeByte(codebook.length(b));
+    }
+    dataOut.flush();
+  }
+
+  /**
+   * reads a codebook written by write and builds its tables.
+   *
+   * @param in where to read it from.
+   * @return the codebook.
+   * @throws IOException if the codebook is missing or damaged.
+   */
+  public static SharedCodebook read(InputStream in) throws IOException {
+    DataInputStream dataIn = new DataInputStream(in);
+    if (dataIn.readInt() != MAGIC) {
+      throw new IOException("not a jmz codebook");
+    }
+    int[] lengths = new int[256];
+    for (int b = 0; b < 256; b++) {
+      lengths[b] = dataIn.readUnsignedByte();
+    }
+    try {
+      return new SharedCodebook(HuffCodebook.fromLengths(lengths));
+    } catch (IllegalArgumentException iae) {
+      throw new IOException("corrupt jmz codebook", iae);
+    }
+  }
+
+  /**
+   * main method, trains a codebook.
+   *
+   * @param args codebook file, then sample files.
+   */
+  public static void main(String[] args) {
+    if (args.length < 2) {
+      System.err.println("Usage: SharedCodebook <codebook file> <sample file>...");
+      return;
+    }
+    try {
+      List<Path> samples = new ArrayList<>();
+      for (int i = 1; i < args.length; i++) {
+        samples.add(Paths.get(args[i]));
+      }
+      SharedCodebook trained = train(samples);
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(
+          Paths.get(args[0])))) {
+        trained.write(out);
+      }
+      System.out.printf("codebook %08x, longest code %d bits%n", trained.id,
+          trained.codebook.maxLength());
+    } catch (IOException ioe) {
+      System.err.print("codebook could not be trained: " + ioe.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import jmzip.bench.Ops;
+
+/**
+ * Builds the operations jmzip.bench.JmzBenchmark times on each corpus: the
+ * in memory coder step by step, BitSequence, and JMZip and JMUnzip file to
+ * file. Every input an operation needs is made here, and checked to round
+ * trip, so a run only times the operation itself.
+ *
+ * @author jeromeli
+ *
+ */
+public class JmzOps implements Ops {
+
+  @Override
+  public Map<String, Op> forCorpus(String corpus, int size) throws IOException {
+    byte[] data = HuffBenchmark.corpus(corpus, size);
+    int[] freq = BuildHuffTree.countFreq(data, 0, size);
+    HuffTree tree = BuildHuffTree.buildTree(freq);
+    BitSequence bits = BuildHuffTree.encode(tree, data);
+    if (!Arrays.equals(data, BuildHuffTree.decodeSeq(tree, bits))) {
+      throw new IllegalStateException("decodeSeq does not match " + corpus);
+    }
+    HuffCodebook codebook = HuffCodebook.fromLengths(
+        BuildHuffTree.codeLengths(freq, BlockEncoder.DEFAULT_MAX_CODE_LENGTH));
+    ByteBuffer block = ByteBuffer.wrap(data);
+    byte[] encoded = new byte[(int) (BuildHuffTree.encodedBits(codebook, freq) / 8) + 8];
+    BitSequence bytes = new BitSequence();
+    for (byte b : data) {
+      bytes.appendBits(b, 8);
+    }
+
+    Map<String, Op> ops = new HashMap<>();
+    ops.put("readFreq", bh -> bh.consume(BuildHuffTree.readFreq(data)));
+    ops.put("countFreq", bh -> bh.consume(BuildHuffTree.countFreq(data, 0, size)));
+    ops.put("buildTree", bh -> bh.consume(BuildHuffTree.buildTree(freq)));
+    ops.put("encode", bh -> bh.consume(BuildHuffTree.encode(tree, data)));
+    ops.put("encodeBlock", bh -> bh.consume(BuildHuffTree.encode(codebook, block, encoded, 0)));
+    ops.put("decodeSeq", bh -> bh.consume(BuildHuffTree.decodeSeq(tree, bits)));
+    ops.put("appendBits", bh -> {
+      BitSequence seq = new BitSequence();
+      for (byte b : data) {
+        seq.appendBits(b, 8);
+      }
+      bh.consume(seq);
+    });
+    ops.put("iterateBits", bh -> {
+      long sum = 0;
+      for (int bit : bytes) {
+        sum += bit;
+      }
+      bh.consume(sum);
+    });
+    putFiles(ops, data);
+    return ops;
+  }
+
+  /**
+   * helper method that adds JMZip and JMUnzip on a copy of data in a new
+   * directory under the working directory, which is deleted on exit.
+   */
+  private static void putFiles(Map<String, Op> ops, byte[] data) throws IOException {
+    // JMZip only takes relative names.
+    Path dir = Files.createTempDirectory(Paths.get(""), "jmh");
+    Path file = dir.resolve("corpus.dat");
+    Path zipped = dir.resolve("corpus.jmz");
+    Path restored = dir.resolve("restored.dat");
+    dir.toFile().deleteOnExit();
+    for (Path path : new Path[] {file, zipped, restored}) {
+      path.toFile().deleteOnExit();
+    }
+    Files.write(file, data);
+    String[] zipArgs = {file.toString(), zipped.toString()};
+    String[] unzipArgs = {zipped.toString(), restored.toString()};
+    JMZip.main(zipArgs);
+    JMUnzip.main(unzipArgs);
+    if (!Arrays.equals(data, Files.readAllBytes(restored))) {
+      throw new IllegalStateException("JMUnzip does not match input");
+    }
+
+    ops.put("zip", bh -> JMZip.main(zipArgs));
+    ops.put("unzip", bh -> JMUnzip.main(unzipArgs));
+  }
+
+}
@@ -0,0 +1,134 @@
+package jmzip.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of each step of the coder and of JMZip and JMUnzip end to
+ * end, on text, random bytes, a skewed distribution and a single byte value.
+ * Each operation works on a whole 1 MB corpus, so the score in ops/s is also
+ * MB/s, and with -prof gc gc.alloc.rate.norm is the bytes allocated per
+ * megabyte. For example:
+ * {@code java -jar jmh/target/benchmarks.jar -prof gc -p corpus=text encode}
+ *
+ * @author jeromeli
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JmzBenchmark {
+
+  private static final int SIZE = 1 << 20;
+
+  @Param({"text", "random", "skewed", "single"})
+  public String corpus;
+
+  private Ops.Op readFreq;
+  private Ops.Op countFreq;
+  private Ops.Op buildTree;
+  private Ops.Op encode;
+  private Ops.Op encodeBlock;
+  private Ops.Op decodeSeq;
+  private Ops.Op appendBits;
+  private Ops.Op iterateBits;
+  private Ops.Op zip;
+  private Ops.Op unzip;
+
+  /**
+   * builds the operations on the corpus, see Ops.
+   *
+   * @throws Exception if JmzOps cannot be loaded or its files written.
+   */
+  @Setup
+  public void setUp() throws Exception {
+    Ops ops = (Ops) Class.forName("JmzOps").getDeclaredConstructor().newInstance();
+    Map<String, Ops.Op> byName = ops.forCorpus(corpus, SIZE);
+    readFreq = byName.get("readFreq");
+    countFreq = byName.get("countFreq");
+    buildTree = byName.get("buildTree");
+    encode = byName.get("encode");
+    encodeBlock = byName.get("encodeBlock");
+    decodeSeq = byName.get("decodeSeq");
+    appendBits = byName.get("appendBits");
+    iterateBits = byName.get("iterateBits");
+    zip = byName.get("zip");
+    unzip = byName.get("unzip");
+  }
+
+  /** BuildHuffTree.readFreq, counts into a HashMap. */
+  @Benchmark
+  public void readFreq(Blackhole bh) throws Exception {
+    readFreq.run(bh);
+  }
+
+  /** BuildHuffTree.countFreq, counts into an int[256]. */
+  @Benchmark
+  public void countFreq(Blackhole bh) throws Exception {
+    countFreq.run(bh);
+  }
+
+  /** BuildHuffTree.buildTree from the counts of the corpus. */
+  @Benchmark
+  public void buildTree(Blackhole bh) throws Exception {
+    buildTree.run(bh);
+  }
+
+  /** BuildHuffTree.encode into a new BitSequence. */
+  @Benchmark
+  public void encode(Blackhole bh) throws Exception {
+    encode.run(bh);
+  }
+
+  /** BuildHuffTree.encode into a reused array, as the block coder does. */
+  @Benchmark
+  public void encodeBlock(Blackhole bh) throws Exception {
+    encodeBlock.run(bh);
+  }
+
+  /** BuildHuffTree.decodeSeq of the encoded corpus. */
+  @Benchmark
+  public void decodeSeq(Blackhole bh) throws Exception {
+    decodeSeq.run(bh);
+  }
+
+  /** BitSequence.appendBits of every byte, 8 bits at a time. */
+  @Benchmark
+  public void appendBits(Blackhole bh) throws Exception {
+    appendBits.run(bh);
+  }
+
+  /** BitSequence.iterator over every bit of the corpus. */
+  @Benchmark
+  public void iterateBits(Blackhole bh) throws Exception {
+    iterateBits.run(bh);
+  }
+
+  /** JMZip.main, file to file. */
+  @Benchmark
+  public void zip(Blackhole bh) throws Exception {
+    zip.run(bh);
+  }
+
+  /** JMUnzip.main, file to file. */
+  @Benchmark
+  public void unzip(Blackhole bh) throws Exception {
+    unzip.run(bh);
+  }
+
+}
@@ -0,0 +1,42 @@
+package jmzip.bench;
+
+import java.io.IOException;
+import java.util.Map;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The operations JmzBenchmark times. JMH only runs benchmarks in a named
+ * package and a named package cannot name the coder's classes, which are in
+ * the default package, so JmzOps, also in the default package, builds the
+ * operations and JmzBenchmark loads it by name and sees it through this
+ * interface.
+ *
+ * @author jeromeli
+ *
+ */
+public interface Ops {
+
+  /**
+   * One run of an operation.
+   */
+  interface Op {
+
+    /**
+     * runs the operation once and hands its result to bh.
+     */
+    void run(Blackhole bh) throws Exception;
+
+  }
+
+  /**
+   * prepares every operation on a corpus.
+   *
+   * @param corpus name of the corpus, see HuffBenchmark.corpus.
+   * @param size number of bytes in the corpus.
+   * @return the operations by name.
+   * @throws IOException if the files JMZip and JMUnzip work on cannot be
+   *         written.
+   */
+  Map<String, Op> forCorpus(String corpus, int size) throws IOException;
+
+}